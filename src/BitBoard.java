@@ -0,0 +1,185 @@
+/** Board representation where each color's 61 cells are packed into the low bits of a long.
+ * Cells are indexed row by row in the same order as BoardUtil.COORDINATES, so iterating set bits
+ * from lowest to highest visits the board in the same order as a row/column scan. */
+public class BitBoard {
+    public static final int CELL_COUNT = 61;
+    public static final int NO_CELL = -1;
+    public static final long ALL_CELLS = (1L << CELL_COUNT) - 1;
+
+    /// Index of the first cell of each row
+    private static final int[] ROW_OFFSET = initRowOffsets();
+
+    /// Maps cell indices back to our coordinates
+    static final Coordinate[] CELL_COORDINATES = initCellCoordinates();
+
+    /// Neighbor cell of each cell in each direction, indexed by cell * 6 + direction ordinal, NO_CELL if out of bounds
+    static final int[] NEIGHBOR = initNeighbors();
+
+    /// Mask of the (up to 6) neighbors of each cell
+    static final long[] NEIGHBOR_MASK = initNeighborMasks();
+
+    /// Cells on the outer ring of the board
+    static final long EDGE_MASK = initEdgeMask();
+
+    /// RING_MASK[d] holds all the cells that are d steps away from the center
+    static final long[] RING_MASK = initRingMasks();
+
+    long black;
+    long white;
+
+    BitBoard(byte[][] board) {
+        for (int row = 0; row < board.length; ++row) {
+            for (int col = 0; col < board[row].length; ++col) {
+                long bit = 1L << (ROW_OFFSET[row] + col);
+                if (board[row][col] == Board.BLACK)
+                    black |= bit;
+                else if (board[row][col] == Board.WHITE)
+                    white |= bit;
+            }
+        }
+    }
+
+    BitBoard(long black, long white) {
+        this.black = black;
+        this.white = white;
+    }
+
+    BitBoard(BitBoard toCopy) {
+        this.black = toCopy.black;
+        this.white = toCopy.white;
+    }
+
+    private static int[] initRowOffsets() {
+        int[] offsets = new int[BoardUtil.COORDINATES.length];
+        int offset = 0;
+        for (int row = 0; row < offsets.length; ++row) {
+            offsets[row] = offset;
+            offset += BoardUtil.COORDINATES[row].length;
+        }
+        return offsets;
+    }
+
+    private static Coordinate[] initCellCoordinates() {
+        Coordinate[] coords = new Coordinate[CELL_COUNT];
+        for (Coordinate[] row : BoardUtil.COORDINATES) {
+            for (Coordinate coord : row)
+                coords[index(coord)] = coord;
+        }
+        return coords;
+    }
+
+    private static int[] initNeighbors() {
+        int[] neighbors = new int[CELL_COUNT * 6];
+        for (int cell = 0; cell < CELL_COUNT; ++cell) {
+            BoardUtil.Neighbors n = BoardUtil.neighborsOf(CELL_COORDINATES[cell]);
+            for (BoardUtil.Direction dir : BoardUtil.Direction.values()) {
+                BoardUtil.Neighbor neighbor = n.fromDirection(dir);
+                neighbors[cell * 6 + dir.ordinal()] = neighbor == null ? NO_CELL : index(neighbor.coordinate);
+            }
+        }
+        return neighbors;
+    }
+
+    private static long[] initNeighborMasks() {
+        long[] masks = new long[CELL_COUNT];
+        for (int cell = 0; cell < CELL_COUNT; ++cell) {
+            for (int dir = 0; dir < 6; ++dir) {
+                int neighbor = NEIGHBOR[cell * 6 + dir];
+                if (neighbor != NO_CELL)
+                    masks[cell] |= 1L << neighbor;
+            }
+        }
+        return masks;
+    }
+
+    private static long initEdgeMask() {
+        long mask = 0;
+        for (int cell = 0; cell < CELL_COUNT; ++cell) {
+            if (BoardUtil.onEdge(CELL_COORDINATES[cell]))
+                mask |= 1L << cell;
+        }
+        return mask;
+    }
+
+    private static long[] initRingMasks() {
+        long[] rings = new long[5];
+        Coordinate center = BoardUtil.COORDINATES[4][4];
+        for (int cell = 0; cell < CELL_COUNT; ++cell)
+            rings[BoardUtil.manhattanDistance(CELL_COORDINATES[cell], center)] |= 1L << cell;
+        return rings;
+    }
+
+    public static int index(Coordinate coord) {
+        return ROW_OFFSET[coord.y] + coord.x;
+    }
+
+    public static int neighbor(int cell, int dir) {
+        return NEIGHBOR[cell * 6 + dir];
+    }
+
+    public long pieces(byte player) {
+        return player == Board.BLACK ? black : player == Board.WHITE ? white : ~(black | white) & ALL_CELLS;
+    }
+
+    public byte get(int cell) {
+        long bit = 1L << cell;
+        if ((black & bit) != 0)
+            return Board.BLACK;
+        if ((white & bit) != 0)
+            return Board.WHITE;
+        return Board.EMPTY;
+    }
+
+    private void set(int cell, byte piece) {
+        long bit = 1L << cell;
+        black &= ~bit;
+        white &= ~bit;
+        if (piece == Board.BLACK)
+            black |= bit;
+        else if (piece == Board.WHITE)
+            white |= bit;
+    }
+
+    /// Pushes the piece at "from" towards "to" (a neighbor in direction dir, or NO_CELL for off the board),
+    /// shifting along any pieces in the way. Mirrors Move.pushPiece on the byte[][] representation.
+    /// @return the piece pushed off the board, Board.EMPTY if none was
+    byte pushPiece(int from, int to, int dir) {
+        int next = to;
+        byte currentPiece = get(from);
+        set(from, Board.EMPTY);
+        while (next != NO_CELL && currentPiece != Board.EMPTY) {
+            byte nextPiece = get(next);
+            set(next, currentPiece);
+            next = neighbor(next, dir);
+            currentPiece = nextPiece;
+        }
+        return next == NO_CELL ? currentPiece : Board.EMPTY;
+    }
+
+    /// Applies a move given as a MoveCode, assumes it's legal
+    /// @return the piece pushed off the board, Board.EMPTY if none was
+    byte apply(int code) {
+        int from = MoveCode.from(code);
+        int travel = MoveCode.travelDirection(code);
+        if (MoveCode.side(code) == MoveCode.INLINE)
+            return pushPiece(from, neighbor(from, travel), travel);
+
+        int line = MoveCode.direction(code);
+        int cell = from;
+        for (int i = 0; i < MoveCode.count(code); ++i) {
+            pushPiece(cell, neighbor(cell, travel), travel);
+            cell = neighbor(cell, line);
+        }
+        return Board.EMPTY;
+    }
+
+    public byte[][] toRepresentation() {
+        byte[][] board = new byte[BoardUtil.COORDINATES.length][];
+        for (int row = 0; row < board.length; ++row) {
+            board[row] = new byte[BoardUtil.COORDINATES[row].length];
+            for (int col = 0; col < board[row].length; ++col)
+                board[row][col] = get(ROW_OFFSET[row] + col);
+        }
+        return board;
+    }
+}
@@ -1,5 +1,6 @@
 import javafx.application.Platform;
 
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Optional;
 import java.util.Timer;
@@ -9,7 +10,12 @@ import java.util.concurrent.CopyOnWriteArrayList;
 /** Game logic */
 public class Board {
 
-    private static Minimax.SearchInterruptHandle NO_OP_HANDLE = new Minimax.SearchInterruptHandle() {
+    private static Minimax.AnalysisHandle NO_OP_HANDLE = new Minimax.AnalysisHandle() {
+        @Override
+        public Optional<Minimax.Analysis> latestAnalysis() {
+            return Optional.empty();
+        }
+
         @Override
         public Move interruptWithOutput() {
             return null;
@@ -58,7 +64,11 @@ public class Board {
     public boolean GAME_PAUSED = false;
     private int curPlayerTurnTimeLeft;
     private Timer gameTimer;
-    private Minimax minimax;
+    // one search and time manager per player, so an AI can ponder while the other one searches
+    private final Minimax blackMinimax = new Minimax();
+    private final Minimax whiteMinimax = new Minimax();
+    private final TimeManager blackTimeManager = new TimeManager();
+    private final TimeManager whiteTimeManager = new TimeManager();
     private ScoreUpdateListener scoreUpdateListener = (blackPlayer, whitePlayer) -> { };
     private CurrentPlayerChangedListener currentPlayerChangedListener = currentPlayer -> { };
     private List<TimeUpdatedListener> timeUpdatedListeners = new CopyOnWriteArrayList<>();
@@ -67,15 +77,24 @@ public class Board {
 
     // ai stuff
     private TimeUpdatedListener aiTimeoutHandler = (currentPlayer, timeLeftForPlayer) -> { };
-    private Minimax.SearchInterruptHandle lastSearchHandle = NO_OP_HANDLE;
+    private Minimax.AnalysisHandle lastSearchHandle = NO_OP_HANDLE;
+    private Move lastMove;
+    // pondering: the AI that just moved searches the position after the reply it expects,
+    // which becomes its real search if the opponent plays that reply
+    private Move predictedReply;
+    private Move ponderMove;
+    private Minimax.AnalysisHandle ponderHandle = NO_OP_HANDLE;
+    private final OpeningBook openingBook;
+    /// Book move waiting to be played, it doesn't wait for the countdown so the opening uses no clock time
+    private Move pendingBookMove;
 
 
     Board(byte[][] board, double height, Config config) {
         this.board = BoardUtil.deepCopyRepresentation(board);
         gui = new GuiBoard(board, height);
 
-        current = new Player(config.blackAgent, Board.BLACK, config.moveLimit, config.blackTimeLimitMs, new PrimaryHeuristic(), false, 4);
-        opponent = new Player(config.whiteAgent, Board.WHITE, config.moveLimit, config.whiteTimeLimitMs, new PrimaryHeuristic(), false, 4);
+        current = new Player(config.blackAgent, Board.BLACK, config.moveLimit, config.blackTimeLimitMs, new PrimaryHeuristic(), config.blackIterativeDeepening, config.blackDepthLimit, config.blackSearchThreads, config.blackPonders);
+        opponent = new Player(config.whiteAgent, Board.WHITE, config.moveLimit, config.whiteTimeLimitMs, new PrimaryHeuristic(), config.whiteIterativeDeepening, config.whiteDepthLimit, config.whiteSearchThreads, config.whitePonders);
 
         blackMovesLeft = config.moveLimit;
         whiteMovesLeft = config.moveLimit;
@@ -83,36 +102,136 @@ public class Board {
 
         gameTimer = new Timer(true);
         gameTimer.schedule(new Countdown(), 0, TIME_STEP_MS);
-        minimax = new Minimax();
+        blackMinimax.setTimeManager(blackTimeManager);
+        whiteMinimax.setTimeManager(whiteTimeManager);
+        TranspositionTable.resize(config.transpositionTableMb);
+        TranspositionTable.setSymmetricKeys(config.symmetricTranspositions);
+        EvalCache.resize(config.evalCacheMb);
+        openingBook = OpeningBook.open(Paths.get(config.openingBookFile));
+    }
+
+    private Minimax minimaxOf(Player player) {
+        return player.piece == Board.BLACK ? blackMinimax : whiteMinimax;
+    }
+
+    private TimeManager timeManagerOf(Player player) {
+        return player.piece == Board.BLACK ? blackTimeManager : whiteTimeManager;
     }
 
     private void runAI(){
+        Optional<Move> bookMove = !GAME_STOPPED && current.agent == Config.PlayerAgent.AI
+                ? openingBook.probe(board, current.piece) : Optional.empty();
+        // a book move or a stopped game makes the ponder search useless, same as a ponder miss
+        Minimax.AnalysisHandle pondered = takePonderSearch(!GAME_STOPPED && !bookMove.isPresent());
         stopAI();
 
-        if (!GAME_STOPPED && current.agent == Config.PlayerAgent.AI) {
-            lastSearchHandle = minimax.searchBestMove(
+        if (bookMove.isPresent()) {
+            pendingBookMove = bookMove.get();
+            // played right after this turn's updates are drawn, or on the next countdown step if the game is paused
+            Platform.runLater(this::playPendingBookMove);
+            aiTimeoutHandler = (currentPlayer, timeLeftForPlayer) -> playPendingBookMove();
+        } else if (!GAME_STOPPED && current.agent == Config.PlayerAgent.AI) {
+            TimeManager timeManager = timeManagerOf(current);
+            int movesLeft = current.piece == Board.BLACK ? blackMovesLeft : whiteMovesLeft;
+            if (pondered != null)
+                timeManager.promote(curPlayerTurnTimeLeft, movesLeft);
+            else
+                timeManager.startMove(curPlayerTurnTimeLeft, movesLeft);
+            lastSearchHandle = pondered != null ? pondered : minimaxOf(current).searchBestMove(
                     // current is the maximizing player, opponent is the minimizing player
                     new Minimax.State(board, current.piece, opponent.piece, blackMovesLeft, whiteMovesLeft, current.score(), opponent.score()),
                     current.heuristic(),
                     current.usesIterativeDeepening(),
-                    current.depthLimit()
+                    current.depthLimit(),
+                    current.searchThreads()
             );
 
             aiTimeoutHandler = (currentPlayer, timeLeftForPlayer) -> {
                 Optional<Move> maybeMove = lastSearchHandle.getOutputIfReady();
 
-                if (timeLeftForPlayer < Minimax.SAFE_TIMEOUT_THRESHOLD_MS) {
+                if (!maybeMove.isPresent() && timeLeftForPlayer < timeManager.safetyMarginMs()) {
+                    long interruptStart = System.nanoTime();
                     maybeMove = Optional.of(lastSearchHandle.interruptWithOutput());
+                    timeManager.recordInterruptLatency((System.nanoTime() - interruptStart) / 1_000_000);
                 }
 
                 maybeMove.ifPresent(m -> {
+                    if (currentPlayer.ponders())
+                        predictedReply = predictedReply(lastSearchHandle, m);
                     try { makeMove(m); } catch (Move.IllegalMoveException ignored) { }
                 });
             };
         }
+
+        if (!GAME_STOPPED && opponent.agent == Config.PlayerAgent.AI && opponent.ponders())
+            startPondering();
+        predictedReply = null;
+    }
+
+    /// The opponent's reply the search expects after the move it played, from its principal variation
+    private static Move predictedReply(Minimax.AnalysisHandle search, Move played) {
+        Optional<Minimax.Analysis> analysis = search.latestAnalysis();
+        if (!analysis.isPresent() || analysis.get().lines.isEmpty())
+            return null;
+        List<Move> pv = analysis.get().lines.get(0).principalVariation;
+        return pv.size() > 1 && MoveParser.toText(pv.get(0)).equals(MoveParser.toText(played)) ? pv.get(1) : null;
+    }
+
+    /// Starts the opponent's (the AI that just moved) search of the position after the reply it predicted
+    private void startPondering() {
+        if (predictedReply == null)
+            return;
+        Player ai = opponent;
+        byte[][] afterReply = BoardUtil.deepCopyRepresentation(board);
+        int aiScore = ai.score();
+        int replyScore = current.score();
+        for (Optional<Byte> pushedOff : predictedReply.apply(afterReply)) {
+            if (pushedOff.isPresent() && pushedOff.get() == ai.piece)
+                ++replyScore;
+            else if (pushedOff.isPresent())
+                ++aiScore;
+        }
+        int movesLeftB = current.piece == Board.BLACK ? blackMovesLeft - 1 : blackMovesLeft;
+        int movesLeftW = current.piece == Board.WHITE ? whiteMovesLeft - 1 : whiteMovesLeft;
+        Minimax.State afterReplyState = new Minimax.State(afterReply, ai.piece, current.piece, movesLeftB, movesLeftW, aiScore, replyScore);
+        if (Minimax.gameOver(afterReplyState) || (ai.piece == Board.BLACK ? movesLeftB : movesLeftW) < 1)
+            return;
+
+        timeManagerOf(ai).startPondering();
+        ponderHandle = minimaxOf(ai).searchBestMove(afterReplyState, ai.heuristic(), ai.usesIterativeDeepening(), ai.depthLimit(), ai.searchThreads());
+        ponderMove = predictedReply;
+    }
+
+    /// Discards the ponder search, if any
+    private void stopPondering() {
+        takePonderSearch(false);
+    }
+
+    /// On a ponder hit, i.e. the last move was the predicted reply, returns the ponder search so it carries on as the real search.
+    /// Otherwise the ponder search is discarded
+    /// @param canContinue false to discard the ponder search even on a hit
+    private Minimax.AnalysisHandle takePonderSearch(boolean canContinue) {
+        boolean hit = canContinue && ponderMove != null && lastMove != null && current.agent == Config.PlayerAgent.AI
+                && MoveParser.toText(ponderMove).equals(MoveParser.toText(lastMove));
+        Minimax.AnalysisHandle pondered = ponderHandle;
+        ponderHandle = NO_OP_HANDLE;
+        ponderMove = null;
+        if (hit)
+            return pondered;
+        pondered.interruptWithOutput();
+        return null;
+    }
+
+    private void playPendingBookMove() {
+        Move move = pendingBookMove;
+        if (move == null || GAME_STOPPED || GAME_PAUSED)
+            return;
+        pendingBookMove = null;
+        try { makeMove(move); } catch (Move.IllegalMoveException ignored) { }
     }
 
     private void stopAI() {
+        pendingBookMove = null;
         aiTimeoutHandler = (currentPlayer, timeLeftForPlayer) -> { };
         lastSearchHandle.interruptWithOutput();
         lastSearchHandle = NO_OP_HANDLE;
@@ -146,6 +265,7 @@ public class Board {
         Gamestate gamestate = new Gamestate(this.representation(), this.currentPlayer(), this.currentOpponent(),
                 this.blackMovesLeft, this.whiteMovesLeft);
         pastGameStateListener.onPastGameState(gamestate, move);
+        lastMove = move;
         applyMove(move);
         nextTurn();
         runAI();
@@ -221,6 +341,12 @@ public class Board {
 
     public void setGamestate(Gamestate gamestate) {
         Gamestate gsCopy = new Gamestate(gamestate);
+        // the positions searched from the undone moves are of no use anymore,
+        // the searches are stopped first so they don't store more of them
+        stopPondering();
+        stopAI();
+        TranspositionTable.clear();
+        lastMove = null;
 
         board = gsCopy.board;
         gui.setupMarbles(board);
@@ -236,6 +362,7 @@ public class Board {
 
     public void onStop() {
         stopAI();
+        stopPondering();
     }
 
     private void scoreUpdateCallback() {
@@ -268,12 +395,14 @@ public class Board {
 
     private void endGameSession(Player winner, String winType) {
         GAME_STOPPED = true;
+        stopPondering();
         this.winner = winner;
         gameInSessionListener.onGameStatusChange(winner, winType);
     }
 
     private void endGameSession() {
         GAME_STOPPED = true;
+        stopPondering();
         if (currentPlayer().score()>currentOpponent().score()) {
             this.winner = currentPlayer();
         } else if (currentOpponent().score()>currentPlayer().score()) {
@@ -331,7 +460,7 @@ public class Board {
     public void doFirstRandMove(){
         if (current.agent == Config.PlayerAgent.AI) {
             try {
-                makeMove(MoveGenerator.firstRandMove(board));
+                makeMove(openingBook.probe(board, current.piece).orElseGet(() -> MoveGenerator.firstRandMove(board)));
             } catch (Move.IllegalMoveException e) {
                 System.out.println("FIRST MOVE WAS ILLEGAL?! BUT WHY??");
                 e.printStackTrace();
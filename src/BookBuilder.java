@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Headless tool that grows the opening book from the three starting layouts with drop-out expansion:
+ * every round it expands the unsearched positions that are cheapest to reach, where each ply costs DROPOUT_PER_PLY
+ * and each move costs how much worse it scores than the best move of its position. So the book goes deep along
+ * the main lines and only shallow into bad ones. Positions are searched to a fixed depth, one per thread,
+ * and the book file is rewritten after every round. Symmetric positions are one book position, kept as the
+ * canonical board (see Symmetry). The book file is also the builder's only state:
+ * a restarted build replays the book from the starting layouts and carries on from there.
+ * Usage: BookBuilder [book file] [search depth] [positions to add] [threads] */
+public class BookBuilder {
+    private static final int DEFAULT_DEPTH = 5;
+    private static final int DEFAULT_POSITIONS = 10_000;
+    /// Moves of a position that get an exact score, and book entries
+    private static final int MOVES_PER_POSITION = 4;
+    private static final int DROPOUT_PER_PLY = 20;
+    /// Moves scoring within this much of the position's best one are played, with weights falling off linearly
+    private static final int PLAY_MARGIN = 10;
+    private static final int MAX_WEIGHT = 100;
+    private static final int POSITIONS_PER_THREAD = 4;
+    private static final int MARBLES = 14;
+    /// Book positions are far from any move limit
+    private static final int MOVES_LEFT = 1000;
+
+    /** A canonical book position. It's searched once its moves are set, the children are the positions after each of them */
+    private static class Node {
+        final long black;
+        final long white;
+        final byte sideToMove;
+        int[] moves;
+        int[] scores;
+        Node[] children;
+        /// Negamax value over the book, valid for the round it was computed in
+        int value;
+        int valueRound = -1;
+
+        Node(long black, long white, byte sideToMove) {
+            this.black = black;
+            this.white = white;
+            this.sideToMove = sideToMove;
+        }
+
+        boolean searched() {
+            return moves != null;
+        }
+
+        long key() {
+            return TranspositionTable.positionKey(bitBoard(), sideToMove);
+        }
+
+        BitBoard bitBoard() {
+            return new BitBoard(black, white);
+        }
+    }
+
+    private static class Candidate {
+        final Node node;
+        final int cost;
+
+        Candidate(Node node, int cost) {
+            this.node = node;
+            this.cost = cost;
+        }
+    }
+
+    private final Path bookFile;
+    private final int depth;
+    private final int threads;
+    private final Map<Long, Node> nodes = new HashMap<>();
+    private final List<Node> roots = new ArrayList<>();
+    private int round = 0;
+
+    BookBuilder(Path bookFile, int depth, int threads) {
+        this.bookFile = bookFile;
+        this.depth = depth;
+        this.threads = threads;
+        for (byte[][] layout : new byte[][][] {BoardUtil.STANDARD_LAYOUT, BoardUtil.GERMAN_DAISY_LAYOUT, BoardUtil.BELGIAN_DAISY_LAYOUT}) {
+            BitBoard board = new BitBoard(layout);
+            roots.add(node(board.black, board.white, Board.BLACK));
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        Path bookFile = Paths.get(args.length > 0 ? args[0] : OpeningBook.DEFAULT_FILE);
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_DEPTH;
+        int positions = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_POSITIONS;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        if (depth < 1 || positions < 0 || threads < 1) {
+            System.out.println("Usage: BookBuilder [book file] [search depth >= 1] [positions to add] [threads]");
+            return;
+        }
+
+        BookBuilder builder = new BookBuilder(bookFile, depth, threads);
+        int resumed = builder.resume();
+        if (resumed > 0)
+            System.out.println("Resuming " + bookFile + " with " + resumed + " positions");
+        builder.build(positions);
+    }
+
+    private Node node(long black, long white, byte sideToMove) {
+        BitBoard board = new BitBoard(black, white);
+        Symmetry.Canonical canonical = Symmetry.canonicalize(board, sideToMove);
+        Node existing = nodes.get(canonical.key);
+        if (existing != null)
+            return existing;
+        board = Symmetry.transform(board, canonical.transform);
+        Node node = new Node(board.black, board.white, sideToMove);
+        nodes.put(canonical.key, node);
+        return node;
+    }
+
+    private Node child(Node node, int i) {
+        if (node.children[i] == null) {
+            BitBoard board = node.bitBoard();
+            board.apply(node.moves[i]);
+            node.children[i] = node(board.black, board.white, Board.playersOpponent(node.sideToMove));
+        }
+        return node.children[i];
+    }
+
+    private void setMoves(Node node, int[] moves, int[] scores) {
+        node.moves = moves;
+        node.scores = scores;
+        node.children = new Node[moves.length];
+    }
+
+    /// Reads back the positions of an earlier build that are reachable from the starting layouts
+    /// @return the number of positions read
+    int resume() {
+        OpeningBook book = OpeningBook.open(bookFile);
+        Map<Long, List<OpeningBook.Entry>> entries = new HashMap<>();
+        for (int i = 0; i < book.size(); ++i) {
+            OpeningBook.Entry entry = book.entry(i);
+            entries.computeIfAbsent(entry.key, k -> new ArrayList<>()).add(entry);
+        }
+
+        int resumed = 0;
+        List<Node> open = new ArrayList<>(roots);
+        Set<Node> seen = new HashSet<>(roots);
+        while (!open.isEmpty()) {
+            Node node = open.remove(open.size() - 1);
+            List<OpeningBook.Entry> nodeEntries = entries.get(node.key());
+            if (nodeEntries == null)
+                continue;
+            int[] moves = new int[nodeEntries.size()];
+            int[] scores = new int[nodeEntries.size()];
+            for (int i = 0; i < moves.length; ++i) {
+                moves[i] = nodeEntries.get(i).move;
+                scores[i] = nodeEntries.get(i).score;
+            }
+            setMoves(node, moves, scores);
+            ++resumed;
+            for (int i = 0; i < moves.length; ++i) {
+                if (seen.add(child(node, i)))
+                    open.add(child(node, i));
+            }
+        }
+        return resumed;
+    }
+
+    /// Score of the node's i-th move: the search score, or the book's value once the position after it is searched
+    private int moveValue(Node node, int i) {
+        Node child = child(node, i);
+        return child.searched() && child.moves.length > 0 ? -value(child) : node.scores[i];
+    }
+
+    private int value(Node node) {
+        if (node.valueRound == round)
+            return node.value;
+        // a position that repeats further down the book sees the search score
+        node.valueRound = round;
+        node.value = node.scores[0];
+        int best = -Minimax.INFINITY;
+        for (int i = 0; i < node.moves.length; ++i)
+            best = Math.max(best, moveValue(node, i));
+        node.value = best;
+        return best;
+    }
+
+    /// The unsearched positions with the lowest drop-out cost, found cheapest first from the starting layouts
+    private List<Node> frontier(int limit) {
+        ++round;
+        List<Node> frontier = new ArrayList<>();
+        Set<Node> settled = new HashSet<>();
+        PriorityQueue<Candidate> queue = new PriorityQueue<>(Comparator.comparingInt(c -> c.cost));
+        for (Node root : roots)
+            queue.add(new Candidate(root, 0));
+
+        while (!queue.isEmpty() && frontier.size() < limit) {
+            Candidate candidate = queue.poll();
+            Node node = candidate.node;
+            if (!settled.add(node))
+                continue;
+            if (!node.searched()) {
+                frontier.add(node);
+                continue;
+            }
+            if (node.moves.length == 0)
+                continue;
+            int best = value(node);
+            for (int i = 0; i < node.moves.length; ++i)
+                queue.add(new Candidate(child(node, i), candidate.cost + DROPOUT_PER_PLY + best - moveValue(node, i)));
+        }
+        return frontier;
+    }
+
+    private static Minimax.Analysis search(Node node, int depth) {
+        byte player = node.sideToMove;
+        byte opponent = Board.playersOpponent(player);
+        BitBoard board = node.bitBoard();
+        Minimax.State state = new Minimax.State(board.toRepresentation(), player, opponent, MOVES_LEFT, MOVES_LEFT,
+                MARBLES - Long.bitCount(board.pieces(opponent)), MARBLES - Long.bitCount(board.pieces(player)));
+        return Minimax.analyze(state, new PrimaryHeuristic(), depth, MOVES_PER_POSITION);
+    }
+
+    /// Searches positions until `positions` were added or there's nothing left to expand
+    void build(int positions) throws IOException, InterruptedException, ExecutionException {
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        int added = 0;
+        try {
+            while (added < positions) {
+                List<Node> frontier = frontier(Math.min(positions - added, threads * POSITIONS_PER_THREAD));
+                if (frontier.isEmpty())
+                    break;
+
+                TranspositionTable.newSearch();
+                List<Callable<Minimax.Analysis>> searches = new ArrayList<>();
+                for (Node node : frontier)
+                    searches.add(() -> search(node, depth));
+                List<Future<Minimax.Analysis>> results = exec.invokeAll(searches);
+
+                for (int n = 0; n < frontier.size(); ++n) {
+                    List<Minimax.Analysis.Line> lines = results.get(n).get().lines;
+                    int[] moves = new int[lines.size()];
+                    int[] scores = new int[lines.size()];
+                    for (int i = 0; i < lines.size(); ++i) {
+                        moves[i] = lines.get(i).moveCode;
+                        scores[i] = lines.get(i).score;
+                    }
+                    setMoves(frontier.get(n), moves, scores);
+                }
+                added += frontier.size();
+                write();
+
+                double hours = (System.nanoTime() - start) / 3.6e12;
+                System.out.println(String.format("%d positions added, %d in the book, %.0f positions/hour, %s",
+                        added, searchedCount(), added / hours, EvalCache.stats()));
+            }
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    private int searchedCount() {
+        int count = 0;
+        for (Node node : nodes.values()) {
+            if (node.searched())
+                ++count;
+        }
+        return count;
+    }
+
+    /// Rewrites the book with every searched position, weighting the moves by their book values
+    private void write() throws IOException {
+        ++round;
+        List<OpeningBook.Entry> entries = new ArrayList<>();
+        // looking up the book values adds the children of new positions to the map
+        for (Node node : new ArrayList<>(nodes.values())) {
+            if (!node.searched() || node.moves.length == 0)
+                continue;
+            long key = node.key();
+            int best = value(node);
+            for (int i = 0; i < node.moves.length; ++i) {
+                int worse = best - moveValue(node, i);
+                int weight = worse <= PLAY_MARGIN ? Math.max(1, MAX_WEIGHT * (PLAY_MARGIN + 1 - worse) / (PLAY_MARGIN + 1)) : 0;
+                entries.add(new OpeningBook.Entry(key, node.moves[i], weight, node.scores[i]));
+            }
+        }
+        OpeningBook.write(bookFile, entries);
+    }
+}
@@ -13,6 +13,19 @@ public class Config {
     public int blackTimeLimitMs;
     public int whiteTimeLimitMs;
     public int moveLimit;
+    /// Iterative deepening searches until the time manager stops it, otherwise the search goes to the depth limit
+    public boolean blackIterativeDeepening = false;
+    public boolean whiteIterativeDeepening = false;
+    public int blackDepthLimit = 4;
+    public int whiteDepthLimit = 4;
+    public int blackSearchThreads = 1;
+    public int whiteSearchThreads = 1;
+    public boolean blackPonders = false;
+    public boolean whitePonders = false;
+    public int transpositionTableMb = TranspositionTable.DEFAULT_SIZE_MB;
+    public boolean symmetricTranspositions = false;
+    public int evalCacheMb = EvalCache.DEFAULT_SIZE_MB;
+    public String openingBookFile = OpeningBook.DEFAULT_FILE;
 
     InitialBoard initialLayout;
 }
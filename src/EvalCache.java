@@ -0,0 +1,92 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Fixed-size cache of heuristic evaluations in front of Heuristic.evaluate, so a leaf that comes up again
+ * (a transposition, the next iteration of iterative deepening, quiescence standing pat on it again) costs one probe.
+ * Entries are keyed by the position's Zobrist key, the maximizing player and the heuristic (Heuristic.cacheId)
+ * and always replaced. Like the TranspositionTable it's shared by all search threads without locking,
+ * the key is stored xor-ed with the data so a torn entry reads as a miss. */
+public class EvalCache {
+    public static final int DEFAULT_SIZE_MB = 16;
+    private static final int ENTRY_SIZE = 2; // in longs
+    private static final int MAX_ENTRIES = 1 << 26;
+    /// Kinds of stored scores, a lazy evaluation outside the window is only a bound on the exact one
+    private static final int EXACT = 0;
+    private static final int UPPER = 1;
+    private static final int LOWER = 2;
+    private static final long WHITE_MAXIMIZING = TranspositionTable.scramble(0xE7A1_CAC4EL);
+
+    private static volatile long[] entries = new long[entriesFor(DEFAULT_SIZE_MB) * ENTRY_SIZE];
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private static int entriesFor(int sizeMb) {
+        long bytes = Math.max(1, sizeMb) * 1024L * 1024L;
+        return (int) Math.min(Long.highestOneBit(bytes / (ENTRY_SIZE * 8)), MAX_ENTRIES);
+    }
+
+    /// Reallocates the cache to fit in sizeMb megabytes, dropping all entries
+    public static void resize(int sizeMb) {
+        int count = entriesFor(sizeMb);
+        if (entries.length == count * ENTRY_SIZE) {
+            clear();
+        } else {
+            entries = new long[count * ENTRY_SIZE];
+        }
+    }
+
+    /// Evaluations don't depend on the search, so unlike the transposition table the cache only needs clearing to free it up
+    public static void clear() {
+        Arrays.fill(entries, 0);
+    }
+
+    /// heuristic.evaluate(state), from the cache if the position was evaluated before
+    public static int evaluate(Heuristic heuristic, Minimax.State state) {
+        return evaluate(heuristic, state, -Minimax.INFINITY, Minimax.INFINITY);
+    }
+
+    /** Lazy heuristic.evaluate(state, alpha, beta). A score outside the window may only be a bound, so it's stored
+     * as one and a later probe only uses it if it still falls outside that probe's window, like a TranspositionTable entry */
+    public static int evaluate(Heuristic heuristic, Minimax.State state, int alpha, int beta) {
+        long key = state.hash ^ heuristic.cacheId() ^ (state.maximizingPlayer == Board.WHITE ? WHITE_MAXIMIZING : 0);
+        long[] entries = EvalCache.entries;
+        int i = ((int) key & (entries.length / ENTRY_SIZE - 1)) * ENTRY_SIZE;
+        long data = entries[i + 1];
+        if ((entries[i] ^ data) == key) {
+            int score = (int) data;
+            int bound = (int) (data >>> 32);
+            if (bound == EXACT || bound == UPPER && score <= alpha || bound == LOWER && score >= beta) {
+                hits.increment();
+                return score;
+            }
+        }
+
+        misses.increment();
+        int score = heuristic.evaluate(state, alpha, beta);
+        int bound = score <= alpha ? UPPER : score >= beta ? LOWER : EXACT;
+        data = (long) bound << 32 | score & 0xFFFF_FFFFL;
+        entries[i] = key ^ data;
+        entries[i + 1] = data;
+        return score;
+    }
+
+    public static long hits() {
+        return hits.sum();
+    }
+
+    public static long misses() {
+        return misses.sum();
+    }
+
+    public static void resetStats() {
+        hits.reset();
+        misses.reset();
+    }
+
+    public static String stats() {
+        long hits = hits(), probes = hits + misses();
+        return String.format("eval cache hits: %d, misses: %d (%.1f%% hits)", hits, probes - hits,
+                probes == 0 ? 0.0 : 100.0 * hits / probes);
+    }
+}
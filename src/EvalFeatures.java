@@ -0,0 +1,132 @@
+/** Evaluation features of a search position, kept up to date by Minimax.State as moves are made and unmade
+ * instead of scanning the board at every leaf: per color, the closeness of its marbles to the center,
+ * how many are on the edge and how many friendly neighbors they have. A move only changes a handful of cells,
+ * so each update looks at just those. The board scans in Heuristic compute the same values, matches() compares
+ * against them as a debug check (run with -ea) */
+class EvalFeatures {
+    private static final int BLACK = 0;
+    private static final int WHITE = 1;
+    private static final int MAX_DIST_FROM_CENTER = 4;
+    private static final int FEATURES = 6;
+
+    /// MAX_DIST_FROM_CENTER minus the cell's distance to the center, as in Heuristic.closenessToCenter
+    private static final int[] CLOSENESS = initCloseness();
+
+    private final int[] closeness = new int[2];
+    private final int[] edge = new int[2];
+    /// Sum over the color's marbles of their friendly neighbors, so every adjacent pair is counted twice
+    private final int[] grouping = new int[2];
+    private final int[] undo = new int[Minimax.State.MAX_PLY * FEATURES];
+
+    private static int[] initCloseness() {
+        int[] closeness = new int[BitBoard.CELL_COUNT];
+        for (int dist = 0; dist < BitBoard.RING_MASK.length; ++dist) {
+            for (long bits = BitBoard.RING_MASK[dist]; bits != 0; bits &= bits - 1)
+                closeness[Long.numberOfTrailingZeros(bits)] = MAX_DIST_FROM_CENTER - dist;
+        }
+        return closeness;
+    }
+
+    EvalFeatures(BitBoard board) {
+        compute(BLACK, board.black);
+        compute(WHITE, board.white);
+    }
+
+    EvalFeatures(EvalFeatures toCopy) {
+        copyFrom(toCopy);
+    }
+
+    /// Takes over the current features of another position, the undo records are left as they are
+    void copyFrom(EvalFeatures toCopy) {
+        System.arraycopy(toCopy.closeness, 0, closeness, 0, 2);
+        System.arraycopy(toCopy.edge, 0, edge, 0, 2);
+        System.arraycopy(toCopy.grouping, 0, grouping, 0, 2);
+    }
+
+    private void compute(int color, long pieces) {
+        closeness[color] = 0;
+        grouping[color] = 0;
+        for (long bits = pieces; bits != 0; bits &= bits - 1) {
+            int cell = Long.numberOfTrailingZeros(bits);
+            closeness[color] += CLOSENESS[cell];
+            grouping[color] += Long.bitCount(BitBoard.NEIGHBOR_MASK[cell] & pieces);
+        }
+        edge[color] = Long.bitCount(pieces & BitBoard.EDGE_MASK);
+    }
+
+    private static int color(byte player) {
+        return player == Board.WHITE ? WHITE : BLACK;
+    }
+
+    int closenessToCenter(byte player) {
+        return closeness[color(player)];
+    }
+
+    int piecesOnEdge(byte player) {
+        return edge[color(player)];
+    }
+
+    int grouping(byte player) {
+        return grouping[color(player)];
+    }
+
+    /// Saves the features to be restored by restore(ply) when the move made at this ply is unmade
+    void save(int ply) {
+        int i = ply * FEATURES;
+        undo[i] = closeness[BLACK];
+        undo[i + 1] = closeness[WHITE];
+        undo[i + 2] = edge[BLACK];
+        undo[i + 3] = edge[WHITE];
+        undo[i + 4] = grouping[BLACK];
+        undo[i + 5] = grouping[WHITE];
+    }
+
+    void restore(int ply) {
+        int i = ply * FEATURES;
+        closeness[BLACK] = undo[i];
+        closeness[WHITE] = undo[i + 1];
+        edge[BLACK] = undo[i + 2];
+        edge[WHITE] = undo[i + 3];
+        grouping[BLACK] = undo[i + 4];
+        grouping[WHITE] = undo[i + 5];
+    }
+
+    /// Updates the features after a move changed the board from the old pieces to the current ones
+    void update(long oldBlack, long oldWhite, BitBoard board) {
+        update(BLACK, oldBlack, board.black);
+        update(WHITE, oldWhite, board.white);
+    }
+
+    private void update(int color, long oldPieces, long pieces) {
+        long removed = oldPieces & ~pieces;
+        long added = pieces & ~oldPieces;
+        if ((removed | added) == 0)
+            return;
+        edge[color] += Long.bitCount(added & BitBoard.EDGE_MASK) - Long.bitCount(removed & BitBoard.EDGE_MASK);
+        // a marble leaving or arriving breaks or makes a pair with each friendly neighbor, pairs count twice
+        long current = oldPieces;
+        for (long bits = removed; bits != 0; bits &= bits - 1) {
+            int cell = Long.numberOfTrailingZeros(bits);
+            current &= ~(1L << cell);
+            closeness[color] -= CLOSENESS[cell];
+            grouping[color] -= 2 * Long.bitCount(BitBoard.NEIGHBOR_MASK[cell] & current);
+        }
+        for (long bits = added; bits != 0; bits &= bits - 1) {
+            int cell = Long.numberOfTrailingZeros(bits);
+            closeness[color] += CLOSENESS[cell];
+            grouping[color] += 2 * Long.bitCount(BitBoard.NEIGHBOR_MASK[cell] & current);
+            current |= 1L << cell;
+        }
+    }
+
+    /// Whether the features match the board scans in Heuristic
+    boolean matches(BitBoard board) {
+        for (byte player : new byte[] {Board.BLACK, Board.WHITE}) {
+            if (closenessToCenter(player) != Heuristic.closenessToCenter(board, player)
+                    || piecesOnEdge(player) != Heuristic.piecesOnEdge(board, player)
+                    || grouping(player) != Heuristic.grouping(board, player))
+                return false;
+        }
+        return true;
+    }
+}
@@ -2,12 +2,29 @@ public class ExperimentalHeuristic extends Heuristic {
 
     private static final int SCORE_WEIGHT = 1000;
 
+    private static final int[] WEIGHTS = initWeights();
+
+    private static int[] initWeights() {
+        int[] weights = new int[FeatureVector.SIZE];
+        weights[FeatureVector.MAX + FeatureVector.CLOSENESS] = 1;
+        weights[FeatureVector.MAX + FeatureVector.SCORE] = SCORE_WEIGHT;
+        weights[FeatureVector.MIN + FeatureVector.SCORE] = -SCORE_WEIGHT;
+        return weights;
+    }
+
     @Override
     public int evaluate(final Minimax.State state) {
         if (Minimax.gameOver(state))
             return winLoss(state);
 
-        return closenessToCenter(state.board, state.maximizingPlayer)
-                + state.maxPlayerScore * SCORE_WEIGHT - state.minPlayerScore * SCORE_WEIGHT;
+        return weightedSum(state, WEIGHTS);
+    }
+
+    @Override
+    public int evaluate(final Minimax.State state, int alpha, int beta) {
+        if (Minimax.gameOver(state))
+            return winLoss(state);
+
+        return weightedSum(state, WEIGHTS, alpha, beta);
     }
 }
@@ -0,0 +1,157 @@
+import java.util.Arrays;
+
+/** Evaluation features of both players as a flat int vector, so a heuristic is a vector of weights over it
+ * and evaluating is a dot product. The first COUNT features are the maximizing player's, the next COUNT
+ * the minimizing player's, e.g. MIN + PUSHES. extract fills the vector with a single walk over the occupied cells;
+ * the closeness, edge and grouping features come from the incrementally updated State.features.
+ * For lazy evaluation the vector can also be filled in stages, cheapest first (extractMaterial, extractIncremental,
+ * extractWalk), with bounds on what the remaining stages can still add */
+class FeatureVector {
+    static final int CLOSENESS = 0;
+    static final int EDGE = 1;
+    static final int GROUPING = 2;
+    static final int FORMATIONS_OF_THREE = 3;
+    static final int FORMATION_BREAK = 4;
+    /// Pushes that don't capture and captures the player could play
+    static final int PUSHES = 5;
+    static final int CAPTURES = 6;
+    /// Opponent marbles pushed off
+    static final int SCORE = 7;
+    static final int COUNT = 8;
+
+    static final int MAX = 0;
+    static final int MIN = COUNT;
+    static final int SIZE = 2 * COUNT;
+
+    private static final int NW = BoardUtil.Direction.NW.ordinal();
+    private static final int E = BoardUtil.Direction.E.ordinal();
+    private static final int NE = BoardUtil.Direction.NE.ordinal();
+
+    /// Whether any of the weights of either player's features a and b is set
+    private static boolean needs(int[] weights, int a, int b) {
+        return weights[MAX + a] != 0 || weights[MAX + b] != 0 || weights[MIN + a] != 0 || weights[MIN + b] != 0;
+    }
+
+    /// Fills features (of length SIZE) for the state. The walk only counts the formations and the pushes
+    /// (the most expensive part) if the weights use them, otherwise they're left at 0
+    static void extract(Minimax.State state, int[] features, int[] weights) {
+        extractMaterial(state, features);
+        extractIncremental(state, features);
+        extractWalk(state, features, weights);
+    }
+
+    /// First stage: clears the vector and fills in the marbles pushed off
+    static void extractMaterial(Minimax.State state, int[] features) {
+        Arrays.fill(features, 0);
+        features[MAX + SCORE] = state.maxPlayerScore;
+        features[MIN + SCORE] = state.minPlayerScore;
+    }
+
+    /// Second stage: the features kept up to date in State.features, checked against the board scans with -ea
+    static void extractIncremental(Minimax.State state, int[] features) {
+        assert state.features.matches(state.board);
+        for (int offset = MAX; offset <= MIN; offset += COUNT) {
+            byte player = offset == MAX ? state.maximizingPlayer : state.minimizingPlayer;
+            features[offset + CLOSENESS] = state.features.closenessToCenter(player);
+            features[offset + EDGE] = state.features.piecesOnEdge(player);
+            features[offset + GROUPING] = state.features.grouping(player);
+        }
+    }
+
+    /// Last stage: the walk over the occupied cells
+    static void extractWalk(Minimax.State state, int[] features, int[] weights) {
+        boolean countFormations = needs(weights, FORMATIONS_OF_THREE, FORMATION_BREAK);
+        boolean countPushes = needs(weights, PUSHES, CAPTURES);
+        long max = state.board.pieces(state.maximizingPlayer);
+        long min = state.board.pieces(state.minimizingPlayer);
+        if (!countFormations && !countPushes)
+            return;
+        for (long bits = max | min; bits != 0; bits &= bits - 1) {
+            int cell = Long.numberOfTrailingZeros(bits);
+            boolean isMax = (max & 1L << cell) != 0;
+            long own = isMax ? max : min;
+            long other = isMax ? min : max;
+            int offset = isMax ? MAX : MIN;
+            if (countFormations) {
+                // lines of three are counted from one end only, in three of the six directions
+                features[offset + FORMATIONS_OF_THREE] += lineOfThree(own, cell, E) + lineOfThree(own, cell, NE) + lineOfThree(own, cell, NW);
+                for (int dir = 0; dir < 6; ++dir) {
+                    // opposite directions are 3 apart in BoardUtil.Direction
+                    int neighbor = BitBoard.neighbor(cell, dir);
+                    int opposite = BitBoard.neighbor(cell, (dir + 3) % 6);
+                    if (neighbor != BitBoard.NO_CELL && (other & 1L << neighbor) != 0
+                            && opposite != BitBoard.NO_CELL && (other & 1L << opposite) != 0)
+                        features[offset + FORMATION_BREAK] += 1;
+                }
+            }
+            // only lines of 2 or 3 marbles push
+            if (countPushes && (BitBoard.NEIGHBOR_MASK[cell] & own) != 0) {
+                for (int dir = 0; dir < 6; ++dir) {
+                    int front = MoveGenerator.pushFront(own, other, cell, dir);
+                    if (front != MoveGenerator.NO_PUSH)
+                        features[offset + ((front & MoveGenerator.CAPTURE_FLAG) != 0 ? CAPTURES : PUSHES)] += 1;
+                }
+            }
+        }
+        assert matchesScans(state, features, countFormations, countPushes);
+    }
+
+    /// Whether the features of the walk match the board scans in Heuristic, as a debug check (run with -ea)
+    private static boolean matchesScans(Minimax.State state, int[] features, boolean countFormations, boolean countPushes) {
+        for (int offset = MAX; offset <= MIN; offset += COUNT) {
+            byte player = offset == MAX ? state.maximizingPlayer : state.minimizingPlayer;
+            byte opponent = Board.playersOpponent(player);
+            int pushes = countPushes ? MoveGenerator.countPushes(state.board, player, opponent) : 0;
+            if (countFormations && features[offset + FORMATIONS_OF_THREE] != Heuristic.formationsOfThree(state.board, player)
+                    || countFormations && features[offset + FORMATION_BREAK] != Heuristic.formationBreak(state.board, player, opponent)
+                    || features[offset + PUSHES] != MoveGenerator.pushCount(pushes)
+                    || features[offset + CAPTURES] != MoveGenerator.captureCount(pushes))
+                return false;
+        }
+        return true;
+    }
+
+    /** Bound on what the stages after the given one can add to the dot product. Every feature is at least 0 and
+     * at most a multiple of the player's marbles n: closeness 4n, edge n, grouping 6n, formation breaks 6n.
+     * Pushes and captures together start from a friendly neighbor, so there are at most grouping of them,
+     * and each line of three takes up two of those neighbor pairs
+     * @param incrementalDone whether extractIncremental filled in its features, which also tightens the grouping
+     * @param upper the highest addition if true, the lowest (at most 0) otherwise */
+    static int remainingBound(Minimax.State state, int[] weights, int[] features, boolean incrementalDone, boolean upper) {
+        int bound = 0;
+        for (int offset = MAX; offset <= MIN; offset += COUNT) {
+            int n = Long.bitCount(state.board.pieces(offset == MAX ? state.maximizingPlayer : state.minimizingPlayer));
+            int grouping = incrementalDone ? features[offset + GROUPING] : 6 * n;
+            if (!incrementalDone) {
+                bound += extreme(weights[offset + CLOSENESS] * 4 * n, upper)
+                       + extreme(weights[offset + EDGE] * n, upper)
+                       + extreme(weights[offset + GROUPING] * grouping, upper);
+            }
+            bound += extreme(weights[offset + FORMATIONS_OF_THREE] * (grouping / 2), upper)
+                   + extreme(weights[offset + FORMATION_BREAK] * 6 * n, upper);
+            int pushes = weights[offset + PUSHES] * grouping;
+            int captures = weights[offset + CAPTURES] * grouping;
+            bound += upper ? Math.max(0, Math.max(pushes, captures)) : Math.min(0, Math.min(pushes, captures));
+        }
+        return bound;
+    }
+
+    private static int extreme(int contribution, boolean upper) {
+        return upper ? Math.max(0, contribution) : Math.min(0, contribution);
+    }
+
+    private static int lineOfThree(long pieces, int cell, int dir) {
+        int neighbor = BitBoard.neighbor(cell, dir);
+        if (neighbor == BitBoard.NO_CELL || (pieces & 1L << neighbor) == 0)
+            return 0;
+        int next = BitBoard.neighbor(neighbor, dir);
+        return next != BitBoard.NO_CELL && (pieces & 1L << next) != 0 ? 1 : 0;
+    }
+
+    static int dot(int[] weights, int[] features) {
+        int sum = 0;
+        for (int i = 0; i < SIZE; ++i)
+            sum += weights[i] * features[i];
+        return sum;
+    }
+}
@@ -1,19 +1,14 @@
-import java.util.List;
-import java.util.Optional;
-
 public abstract class Heuristic {
-    private static final int[][] CACHED_CENTER_DIST_SCORE = cacheCenterDist();
-
-    private static int[][] cacheCenterDist() {
-        int maxDistFromCenter = 4;
-        int[][] dist = new int[BoardUtil.STANDARD_LAYOUT.length][];
-        for (int row = 0; row < dist.length; ++row) {
-            dist[row] = new int[BoardUtil.STANDARD_LAYOUT[row].length];
-            for (int col = 0; col < dist[row].length; ++col)
-                dist[row][col] = maxDistFromCenter - BoardUtil.manhattanDistance(BoardUtil.COORDINATES[row][col], BoardUtil.COORDINATES[4][4]);
-        }
-        return dist;
-    }
+    private static final int MAX_DIST_FROM_CENTER = 4;
+
+    /// Scores of finished games, well outside anything the evaluation reaches and safe to negate
+    public static final int WIN_SCORE = 1_000_000;
+    public static final int LOSS_SCORE = -WIN_SCORE;
+    /// A draw on moves left is still counted as half a loss
+    public static final int DRAW_SCORE = LOSS_SCORE / 2;
+
+    /// Tells the evaluations of different heuristics apart in the EvalCache
+    private final long cacheId = TranspositionTable.scramble(getClass().getName().hashCode());
 
     static int logScale(int val) {
         if (val <= 0) return 0;
@@ -25,68 +20,42 @@ public abstract class Heuristic {
     }
 
     /** Reverse Manhattan distance of all player's pieces to the center of the board,
-     * i.e. at center dist = 4, 4 away from center = 0 */
-    static int closenessToCenter(byte[][] board, byte player) {
+     * i.e. at center dist = 4, 4 away from center = 0.
+     * The search reads this, piecesOnEdge and grouping from State.features, the scans check them */
+    static int closenessToCenter(BitBoard board, byte player) {
+        long pieces = board.pieces(player);
         int totalScore = 0;
-        for (int row = 0; row < board.length; ++row) {
-            for (int col = 0; col < board[row].length; ++col) {
-                if (board[row][col] == player)
-                    totalScore += CACHED_CENTER_DIST_SCORE[row][col];
-            }
-        }
+        for (int dist = 0; dist < BitBoard.RING_MASK.length; ++dist)
+            totalScore += Long.bitCount(pieces & BitBoard.RING_MASK[dist]) * (MAX_DIST_FROM_CENTER - dist);
         return totalScore;
     }
 
-    static int distanceFromCenter(byte[][] board, byte player) {
-        int maxDistFromCenter = 4;
+    static int distanceFromCenter(BitBoard board, byte player) {
+        long pieces = board.pieces(player);
         int totalScore = 0;
-        for (int row = 0; row < board.length; ++row) {
-            for (int col = 0; col < board[row].length; ++col) {
-                if (board[row][col] == player)
-                    totalScore += maxDistFromCenter - CACHED_CENTER_DIST_SCORE[row][col];
-            }
-        }
+        for (int dist = 1; dist < BitBoard.RING_MASK.length; ++dist)
+            totalScore += Long.bitCount(pieces & BitBoard.RING_MASK[dist]) * dist;
         return totalScore;
     }
 
-    static int piecesOnEdge(byte[][] board, byte player) {
-        int piecesOnEdge = 0;
-        for (byte b : board[0])
-            piecesOnEdge += b == player ? 1 : 0;
-
-        for (byte b : board[board.length - 1])
-            piecesOnEdge += b == player ? 1 : 0;
-
-        for (int row = 1; row < board.length - 1; ++row) {
-            piecesOnEdge += board[row][0] == player ? 1 : 0;
-            piecesOnEdge += board[row][board[row].length - 1] == player ? 1 : 0;
-        }
-
-        return piecesOnEdge;
+    static int piecesOnEdge(BitBoard board, byte player) {
+        return Long.bitCount(board.pieces(player) & BitBoard.EDGE_MASK);
     }
 
     /** Finds how many friendly neighbors each of the player's pieces has */
-    static int grouping(byte[][] board, byte player) {
+    static int grouping(BitBoard board, byte player) {
+        long pieces = board.pieces(player);
         int grouping = 0;
-        for (int row = 0; row < board.length; ++row) {
-            for (int col = 0; col < board[row].length; ++col) {
-                if (board[row][col] == player) {
-                    BoardUtil.Neighbors neighbors = BoardUtil.neighborsOf(BoardUtil.COORDINATES[row][col]);
-                    for (BoardUtil.Neighbor n : neighbors.toArray()) {
-                        if (board[n.coordinate.y][n.coordinate.x] == player)
-                            grouping += 1;
-                    }
-                }
-            }
-        }
+        for (long bits = pieces; bits != 0; bits &= bits - 1)
+            grouping += Long.bitCount(BitBoard.NEIGHBOR_MASK[Long.numberOfTrailingZeros(bits)] & pieces);
         return grouping;
     }
 
-    private static int form3InDir(byte[][] board, byte player, Coordinate c, BoardUtil.Direction dir) {
-        BoardUtil.Neighbor neighbor = BoardUtil.neighborsOf(c).fromDirection(dir);
-        if (neighbor != null && board[neighbor.coordinate.y][neighbor.coordinate.x] == player) {
-            BoardUtil.Neighbor next = neighbor.neighbors().fromDirection(dir);
-            if (next != null && board[next.coordinate.y][next.coordinate.x] == player)
+    private static int form3InDir(long pieces, int cell, BoardUtil.Direction dir) {
+        int neighbor = BitBoard.neighbor(cell, dir.ordinal());
+        if (neighbor != BitBoard.NO_CELL && (pieces & 1L << neighbor) != 0) {
+            int next = BitBoard.neighbor(neighbor, dir.ordinal());
+            if (next != BitBoard.NO_CELL && (pieces & 1L << next) != 0)
                 return 1;
         }
 
@@ -94,75 +63,98 @@ public abstract class Heuristic {
     }
 
     /** Count the number of 3 inline piece formations a player has */
-    static int formationsOfThree(byte[][] board, byte player) {
+    static int formationsOfThree(BitBoard board, byte player) {
+        long pieces = board.pieces(player);
         int formations = 0;
-        for (int row = 0; row < board.length; ++row) {
-            for (int col = 0; col < board[row].length; ++col) {
-                if (board[row][col] == player) {
-                    formations += form3InDir(board, player, BoardUtil.COORDINATES[row][col], BoardUtil.Direction.E)
-                                + form3InDir(board, player, BoardUtil.COORDINATES[row][col], BoardUtil.Direction.NE)
-                                + form3InDir(board, player, BoardUtil.COORDINATES[row][col], BoardUtil.Direction.NW);
-                }
-            }
+        for (long bits = pieces; bits != 0; bits &= bits - 1) {
+            int cell = Long.numberOfTrailingZeros(bits);
+            formations += form3InDir(pieces, cell, BoardUtil.Direction.E)
+                        + form3InDir(pieces, cell, BoardUtil.Direction.NE)
+                        + form3InDir(pieces, cell, BoardUtil.Direction.NW);
         }
         return formations;
     }
 
     /** Formation break happens when a player's marble is between two opponents marbles.
      * @return the number of "broken up" opponent's marbles, i.e. WBW has value of 2 for B player*/
-    static int formationBreak(byte[][] board, byte player, byte opponent) {
+    static int formationBreak(BitBoard board, byte player, byte opponent) {
+        long opponentPieces = board.pieces(opponent);
         int formationBreak = 0;
-        for (int row = 0; row < board.length; ++row) {
-            for (int col = 0; col < board[row].length; ++col) {
-                if (board[row][col] == player) {
-                    BoardUtil.Neighbors neighbors = BoardUtil.neighborsOf(BoardUtil.COORDINATES[row][col]);
-                    for (BoardUtil.Neighbor n : neighbors.toArray()) {
-                        if (board[n.coordinate.y][n.coordinate.x] == opponent) {
-                            formationBreak += Optional.ofNullable(neighbors.fromDirection(n.direction.opposite()))
-                                                      .map(neighbor -> board[neighbor.coordinate.y][neighbor.coordinate.x] == opponent ? 1 : null)
-                                                      .orElse(0);
-                        }
-                    }
-                }
+        for (long bits = board.pieces(player); bits != 0; bits &= bits - 1) {
+            int cell = Long.numberOfTrailingZeros(bits);
+            for (int dir = 0; dir < 6; ++dir) {
+                int neighbor = BitBoard.neighbor(cell, dir);
+                // opposite directions are 3 apart in BoardUtil.Direction
+                int opposite = BitBoard.neighbor(cell, (dir + 3) % 6);
+                if (neighbor != BitBoard.NO_CELL && (opponentPieces & 1L << neighbor) != 0
+                        && opposite != BitBoard.NO_CELL && (opponentPieces & 1L << opposite) != 0)
+                    formationBreak += 1;
             }
         }
         return formationBreak;
     }
 
-    static int aggressionFactor(List<OrderedMove> possibleMoves) {
-        final int capture = 2;
-        final int push = 1;
-
-        int aggression = 0;
-        for (OrderedMove om : possibleMoves) {
-            switch (om.type) {
-                case THREE_PUSH_TWO_CAPTURE: case THREE_PUSH_ONE_CAPTURE: case TWO_PUSH_ONE_CAPTURE:
-                    aggression += capture;
-                    break;
-                case THREE_PUSH_TWO: case THREE_PUSH_ONE: case TWO_PUSH_ONE:
-                    aggression += push;
-                    break;
-                default: break;
-            }
-        }
-        return aggression;
-    }
-
     static int winLoss(Minimax.State state) {
         if (state.maxPlayerScore == Board.SCORE_TO_WIN)
-            return Integer.MAX_VALUE;
+            return WIN_SCORE;
         if (state.minPlayerScore == Board.SCORE_TO_WIN)
-            return Integer.MIN_VALUE;
+            return LOSS_SCORE;
         if (state.movesLeftB == 0 && state.movesLeftW == 0) {
             if (state.maxPlayerScore > state.minPlayerScore)
-                return Integer.MAX_VALUE;
+                return WIN_SCORE;
             if (state.maxPlayerScore < state.minPlayerScore)
-                return Integer.MIN_VALUE;
-            return Integer.MIN_VALUE / 2;
+                return LOSS_SCORE;
+            return DRAW_SCORE;
         }
 
         return 0;
     }
 
+    /// @return the score of the state from the maximizing player's point of view
     public abstract int evaluate(final Minimax.State state);
+
+    /** Lazy evaluation for the search: a score that's certainly at most alpha or at least beta may be returned
+     * as just a bound on that side, without the expensive terms. Scores inside (alpha, beta) are exact.
+     * Heuristics without a cheaper way always evaluate exactly */
+    public int evaluate(final Minimax.State state, int alpha, int beta) {
+        return evaluate(state);
+    }
+
+    /// Evaluation of a heuristic that's a weight vector over FeatureVector, one walk over the board and a dot product
+    static int weightedSum(Minimax.State state, int[] weights) {
+        int[] features = state.featureVector();
+        FeatureVector.extract(state, features, weights);
+        return FeatureVector.dot(weights, features);
+    }
+
+    /// Same as weightedSum, but adds the features up cheapest first (material, then the incremental ones, then the walk)
+    /// and stops as soon as the remaining ones can't bring the sum inside (alpha, beta)
+    static int weightedSum(Minimax.State state, int[] weights, int alpha, int beta) {
+        int[] features = state.featureVector();
+        FeatureVector.extractMaterial(state, features);
+        int sum = FeatureVector.dot(weights, features);
+        int high = sum + FeatureVector.remainingBound(state, weights, features, false, true);
+        if (high <= alpha)
+            return high;
+        int low = sum + FeatureVector.remainingBound(state, weights, features, false, false);
+        if (low >= beta)
+            return low;
+
+        FeatureVector.extractIncremental(state, features);
+        sum = FeatureVector.dot(weights, features);
+        high = sum + FeatureVector.remainingBound(state, weights, features, true, true);
+        if (high <= alpha)
+            return high;
+        low = sum + FeatureVector.remainingBound(state, weights, features, true, false);
+        if (low >= beta)
+            return low;
+
+        FeatureVector.extractWalk(state, features, weights);
+        return FeatureVector.dot(weights, features);
+    }
+
+    /// Heuristics whose evaluation depends on more than their class, e.g. on weights, should mix those in
+    long cacheId() {
+        return cacheId;
+    }
 }
@@ -1,63 +1,374 @@
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-/** Minimax algorithm with alpha-beta pruning */
+/** Minimax algorithm with alpha-beta pruning, in its negamax form with principal variation search */
 public class Minimax {
 
     public static int SAFE_TIMEOUT_THRESHOLD_MS = 200;
-    private static int Q_SEARCH_DEPTH = 2;
+    /// Quiescence search: how many plies of pushes it plays past the horizon, the value of a marble pushed off
+    /// (as in the heuristics) and the margin on top of it for delta pruning
+    private static final int MAX_QUIESCENCE_PLIES = 4;
+    private static final int QUIESCENCE_MARBLE_VALUE = 1000;
+    private static final int DELTA_MARGIN = 200;
+    private static final int MAX_SEARCH_DEPTH = State.MAX_PLY - MAX_QUIESCENCE_PLIES - 1;
+    /// Bound of the search window, beyond any score a position can get
+    static final int INFINITY = Heuristic.WIN_SCORE + 1;
+    /// Half width of the first aspiration window of an iteration, grown by ASPIRATION_GROWTH after every fail
+    private static final int ASPIRATION_WINDOW = 50;
+    private static final int ASPIRATION_GROWTH = 4;
+    /// Null move pruning: depth reduction of the search after passing, and the depth a node needs to try it
+    private static final int NULL_MOVE_REDUCTION = 2;
+    private static final int NULL_MOVE_MIN_DEPTH = 3;
+    /// Late move reductions: quiet moves from this index on are searched one ply shallower first
+    private static final int LMR_MIN_MOVE_INDEX = 3;
+    private static final int LMR_MIN_DEPTH = 3;
+    private static final int LMR_REDUCTION = 1;
+    /// With TranspositionTable.symmetricKeys, nodes with at least this depth left are looked up by their canonical key
+    private static final int SYMMETRIC_KEY_MIN_DEPTH = 2;
+
+    /** How often the aspiration windows of iterative deepening had to be widened and searched again */
+    static class AspirationStats {
+        final AtomicLong iterations = new AtomicLong();
+        final AtomicLong failLows = new AtomicLong();
+        final AtomicLong failHighs = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return "aspiration iterations: " + iterations + ", fail lows: " + failLows + ", fail highs: " + failHighs;
+        }
+    }
+
+    private final AspirationStats aspirationStats = new AspirationStats();
+
+    /// Ends iterative deepening searches early, without one they run until interrupted
+    private volatile TimeManager timeManager;
+
+    public void setTimeManager(TimeManager timeManager) {
+        this.timeManager = timeManager;
+    }
+
+    /// Counted over every search this Minimax ran
+    public AspirationStats aspirationStats() {
+        return aspirationStats;
+    }
 
     interface SearchInterruptHandle {
         Move interruptWithOutput();
         Optional<Move> getOutputIfReady();
     }
 
-    /** Smaller version of Gamestate class, there's some code duplication here */
+    /** Search handle that also reports the best lines of the last completed iteration while the search runs */
+    interface AnalysisHandle extends SearchInterruptHandle {
+        Optional<Analysis> latestAnalysis();
+    }
+
+    /** The best root moves of a completed iteration, best first, each with its score and principal variation.
+     * Only the best line's score is exact unless the search was asked for more lines */
+    static class Analysis {
+        final int depth;
+        final List<Line> lines;
+
+        Analysis(int depth, List<Line> lines) {
+            this.depth = depth;
+            this.lines = lines;
+        }
+
+        static class Line {
+            /// From the maximizing player's point of view
+            final int score;
+            /// Starts with the root move, may be cut short by transposition table hits and parallel splits
+            final List<Move> principalVariation;
+            /// The root move as a MoveCode
+            final int moveCode;
+
+            Line(int score, List<Move> principalVariation, int moveCode) {
+                this.score = score;
+                this.principalVariation = principalVariation;
+                this.moveCode = moveCode;
+            }
+
+            Move move() {
+                return principalVariation.get(0);
+            }
+
+            @Override
+            public String toString() {
+                StringBuilder text = new StringBuilder().append(score).append(':');
+                for (Move m : principalVariation)
+                    text.append(' ').append(MoveParser.toText(m));
+                return text.toString();
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder().append("depth ").append(depth);
+            for (Line line : lines)
+                text.append('\n').append(line);
+            return text.toString();
+        }
+    }
+
+    /** Smaller version of Gamestate class, there's some code duplication here.
+     * Holds the board as a BitBoard so copying a node is two longs instead of a jagged array.
+     * The search applies moves in place with makeMove and reverts them with unmakeMove. */
     static class State {
-        final byte[][] board;
+        static final int MAX_PLY = 128;
+
+        final BitBoard board;
         byte maximizingPlayer;
         byte minimizingPlayer;
         int movesLeftB;
         int movesLeftW;
         int maxPlayerScore;
         int minPlayerScore;
+        byte sideToMove;
+        /// Zobrist key of the position, updated incrementally by makeMove
+        long hash;
+        /// Board features the heuristics read instead of scanning the board, also updated by makeMove
+        final EvalFeatures features;
+
+        // Undo records, one per ply made on this state: the displaced marbles as xor masks,
+        // who moved (to restore moves left) and how many pieces each side lost
+        private final long[] undoBlack = new long[MAX_PLY];
+        private final long[] undoWhite = new long[MAX_PLY];
+        private final byte[] undoMover = new byte[MAX_PLY];
+        private final byte[] undoMaxScore = new byte[MAX_PLY];
+        private final byte[] undoMinScore = new byte[MAX_PLY];
+        private final long[] undoHash = new long[MAX_PLY];
+        private int ply = 0;
+        // Generated moves, one buffer and one picker per ply so a node's moves survive searching its children
+        private final int[][] moveBuffers = new int[MAX_PLY][];
+        private final int[] featureVector = new int[FeatureVector.SIZE];
+        private final MovePicker[] movePickers = new MovePicker[MAX_PLY];
+
+        // Move ordering learned during the search: two killer moves per ply, and a butterfly history table
+        // per player (maximizing, minimizing) of the quiet moves that caused cutoffs
+        private static final int HISTORY_LIMIT = 1 << 24;
+        private final int[] killers = new int[MAX_PLY * 2];
+        private final int[][] history = new int[2][BitBoard.CELL_COUNT * 6];
+
+        // Triangular principal variation table: pv[p][p..pvLength[p]) is the best line found from the node at ply p.
+        // Allocated the first time a line is found, copies for parallel siblings often never need it
+        private int[][] pv;
+        private final int[] pvLength = new int[MAX_PLY + 1];
 
         State(byte[][] board, byte maximizingPlayer, byte minimizingPlayer, int movesLeftB, int movesLeftW, int maxPlayerScore, int minPlayerScore) {
-            this.board = BoardUtil.deepCopyRepresentation(board);
+            this.board = new BitBoard(board);
             this.maximizingPlayer = maximizingPlayer;
             this.minimizingPlayer = minimizingPlayer;
             this.movesLeftB = movesLeftB;
             this.movesLeftW = movesLeftW;
             this.maxPlayerScore = maxPlayerScore;
             this.minPlayerScore = minPlayerScore;
+            // the search always starts with the maximizing player's turn
+            this.sideToMove = maximizingPlayer;
+            this.hash = TranspositionTable.generateZobristKey(this);
+            this.features = new EvalFeatures(this.board);
         }
 
+        /// Copies the position only, the copy has no undo records so its moves can't be unmade past the ply it starts at
         State(State toCopy) {
-            this.board = BoardUtil.deepCopyRepresentation(toCopy.board);
-            this.maximizingPlayer = toCopy.maximizingPlayer;
-            this.minimizingPlayer = toCopy.minimizingPlayer;
-            this.movesLeftB = toCopy.movesLeftB;
-            this.movesLeftW = toCopy.movesLeftW;
-            this.maxPlayerScore = toCopy.maxPlayerScore;
-            this.minPlayerScore = toCopy.minPlayerScore;
+            this.board = new BitBoard(toCopy.board);
+            this.features = new EvalFeatures(toCopy.features);
+            copyPosition(toCopy);
+        }
+
+        /** Makes this state the position of toCopy at the same ply, so its moves can't be unmade past there.
+         * The buffers and the move ordering learned so far are kept, a state can be reused for any position of the same search */
+        void copyPosition(State toCopy) {
+            board.black = toCopy.board.black;
+            board.white = toCopy.board.white;
+            maximizingPlayer = toCopy.maximizingPlayer;
+            minimizingPlayer = toCopy.minimizingPlayer;
+            movesLeftB = toCopy.movesLeftB;
+            movesLeftW = toCopy.movesLeftW;
+            maxPlayerScore = toCopy.maxPlayerScore;
+            minPlayerScore = toCopy.minPlayerScore;
+            sideToMove = toCopy.sideToMove;
+            hash = toCopy.hash;
+            features.copyFrom(toCopy.features);
+            ply = toCopy.ply;
+        }
+
+        /// Move buffer of the current ply, allocated the first time a node at this ply generates moves
+        int[] moveBuffer() {
+            int[] buffer = moveBuffers[ply];
+            if (buffer == null)
+                buffer = moveBuffers[ply] = new int[MoveGenerator.MAX_MOVES];
+            return buffer;
+        }
+
+        /// Buffer for FeatureVector.extract, shared by all plies since evaluations don't nest
+        int[] featureVector() {
+            return featureVector;
+        }
+
+        /// Move picker of the current ply, allocated the first time a node at this ply searches its moves
+        MovePicker movePicker() {
+            MovePicker picker = movePickers[ply];
+            if (picker == null)
+                picker = movePickers[ply] = new MovePicker();
+            return picker;
+        }
+
+        int killer(int slot) {
+            return killers[ply * 2 + slot];
+        }
+
+        int[] history(byte player) {
+            return history[player == maximizingPlayer ? 0 : 1];
+        }
+
+        /// Records a move that caused a beta cutoff at the current ply.
+        /// Pushes are ordered well by type already, so only quiet moves are recorded
+        void recordCutoff(int move, byte player, int depth) {
+            if (MoveCode.isPush(move))
+                return;
+            if (killers[ply * 2] != move) {
+                killers[ply * 2 + 1] = killers[ply * 2];
+                killers[ply * 2] = move;
+            }
+            int[] table = history(player);
+            int i = MoveCode.butterflyIndex(move);
+            table[i] += depth * depth;
+            if (table[i] > HISTORY_LIMIT) {
+                // keep the relative order but make room for new cutoffs
+                for (int j = 0; j < table.length; ++j)
+                    table[j] /= 2;
+            }
+        }
+
+        /// Called when entering a node, its line stays empty unless a move raises alpha
+        void clearPv() {
+            pvLength[ply] = ply;
+        }
+
+        /// The move raised alpha at the current ply: the line becomes the move followed by the line of the child searched after it,
+        /// or just the move if the child's line isn't known
+        void updatePv(int move, boolean withChildLine) {
+            if (pv == null)
+                pv = new int[MAX_PLY][MAX_PLY];
+            int[] line = pv[ply];
+            line[ply] = move;
+            int end = ply + 1;
+            if (withChildLine) {
+                for (; end < pvLength[ply + 1]; ++end)
+                    line[end] = pv[ply + 1][end];
+            }
+            pvLength[ply] = end;
+        }
+
+        /// Line of a move at the current ply followed by the line found in its child, call right after searching it
+        int[] lineOf(int move) {
+            int childEnd = pv == null ? ply + 1 : pvLength[ply + 1];
+            int[] line = new int[Math.max(1, childEnd - ply)];
+            line[0] = move;
+            for (int i = 1; i < line.length; ++i)
+                line[i] = pv[ply + 1][ply + i];
+            return line;
+        }
+
+        /// Applies the move (a MoveCode) in place and records how to revert it
+        void makeMove(int move, byte movingPlayer) {
+            long black = board.black;
+            long white = board.white;
+            byte maxScoreDelta = 0;
+            byte minScoreDelta = 0;
+            byte pushedOff = board.apply(move);
+            if (pushedOff == maximizingPlayer)
+                minScoreDelta += 1;
+            else if (pushedOff == minimizingPlayer)
+                maxScoreDelta += 1;
+
+            undoBlack[ply] = black ^ board.black;
+            undoWhite[ply] = white ^ board.white;
+            undoMover[ply] = movingPlayer;
+            undoMaxScore[ply] = maxScoreDelta;
+            undoMinScore[ply] = minScoreDelta;
+            undoHash[ply] = hash;
+            features.save(ply);
+            ++ply;
+
+            features.update(black, white, board);
+            // every marble that moved or was pushed off flips its bit in the xor masks
+            hash ^= TranspositionTable.displacementKey(black ^ board.black, white ^ board.white)
+                  ^ TranspositionTable.sideToMoveKey();
+            maxPlayerScore += maxScoreDelta;
+            minPlayerScore += minScoreDelta;
+            if (movingPlayer == Board.WHITE) {
+                hash ^= TranspositionTable.movesLeftKey(Board.WHITE, movesLeftW)
+                      ^ TranspositionTable.movesLeftKey(Board.WHITE, movesLeftW - 1);
+                movesLeftW -= 1;
+            } else if (movingPlayer == Board.BLACK) {
+                hash ^= TranspositionTable.movesLeftKey(Board.BLACK, movesLeftB)
+                      ^ TranspositionTable.movesLeftKey(Board.BLACK, movesLeftB - 1);
+                movesLeftB -= 1;
+            }
+            sideToMove = Board.playersOpponent(movingPlayer);
+        }
+
+        /// Passes the turn without moving, for null move pruning. Moves left stay the same
+        void makeNullMove() {
+            undoHash[ply] = hash;
+            ++ply;
+            hash ^= TranspositionTable.sideToMoveKey();
+            sideToMove = Board.playersOpponent(sideToMove);
+        }
+
+        /// Reverts makeNullMove
+        void unmakeNullMove() {
+            --ply;
+            hash = undoHash[ply];
+            sideToMove = Board.playersOpponent(sideToMove);
+        }
+
+        /// Reverts the last move made with makeMove
+        void unmakeMove() {
+            --ply;
+            board.black ^= undoBlack[ply];
+            board.white ^= undoWhite[ply];
+            features.restore(ply);
+            maxPlayerScore -= undoMaxScore[ply];
+            minPlayerScore -= undoMinScore[ply];
+            hash = undoHash[ply];
+            sideToMove = undoMover[ply];
+            if (undoMover[ply] == Board.WHITE)
+                movesLeftW += 1;
+            else if (undoMover[ply] == Board.BLACK)
+                movesLeftB += 1;
         }
     }
 
     /** Scored move helps retrieving the actual move after the maximum value has been calculated */
     private static class ScoredMove implements Comparable {
         int val;
-        OrderedMove move;
+        int move;
+        /// Principal variation starting with the move, just the move when its score is only a bound
+        int[] line;
+
+        ScoredMove(int val, int move) {
+            this(val, move, new int[] {move});
+        }
 
-        ScoredMove(int val, OrderedMove move) {
+        ScoredMove(int val, int move, int[] line) {
             this.val = val;
             this.move = move;
+            this.line = line;
         }
 
         @Override
@@ -67,65 +378,112 @@ public class Minimax {
         }
     }
 
-    private final AtomicBoolean interruptFlag = new AtomicBoolean(false);
-    private State initialSearchState;
-    private Heuristic heuristic;
+    /** Searches in parallel when threads > 1.
+     * Iterative deepening uses Lazy SMP: helper threads run the same search on their own copy of the state
+     * and only share the transposition table with the main thread, which is the one that reports the result.
+     * Depth limited search uses Young Brothers Wait splitting on a ForkJoinPool instead. */
+    public AnalysisHandle searchBestMove(final State state, Heuristic heuristic, boolean useIterativeDeepening, final int depthLimit /* for depth limited search only */, int threads) {
+        return searchBestMove(state, heuristic, useIterativeDeepening, depthLimit, threads, 1);
+    }
 
-    public SearchInterruptHandle searchBestMove(final State state, Heuristic heuristic, boolean useIterativeDeepening, final int depthLimit /* for depth limited search only */) {
-        interruptFlag.set(false);
-        initialSearchState = state;
-        this.heuristic = heuristic;
+    /** Same search, reporting the best multiPv root moves with exact scores and their principal variations after every completed iteration.
+     * Instead of a search per line, the root window is lowered to the multiPv-th best score found so far,
+     * which costs an exact search for each of the multiPv best moves. Aspiration windows and splitting at the root
+     * are only used for a single line */
+    public AnalysisHandle searchBestMove(final State state, Heuristic heuristic, boolean useIterativeDeepening, final int depthLimit, int threads, final int multiPv) {
+        TranspositionTable.newSearch();
+        final AtomicReference<Analysis> analysis = new AtomicReference<>();
+        // new flags for every search, so helpers of an earlier search can't be revived by resetting them
+        final AtomicBoolean interruptFlag = new AtomicBoolean(false);
+        final AtomicBoolean helpersStopFlag = new AtomicBoolean(false);
+        final ForkJoinPool splitPool = !useIterativeDeepening && threads > 1 ? new ForkJoinPool(threads) : null;
+        final Searcher main = new Searcher(heuristic, interruptFlag, null, splitPool != null, multiPv);
+
+        int helpers = useIterativeDeepening ? threads - 1 : 0;
+        ExecutorService exec = Executors.newFixedThreadPool(1 + Math.max(0, helpers));
+        for (int i = 1; i <= helpers; ++i) {
+            final Searcher helper = new Searcher(heuristic, helpersStopFlag, null, false, 1);
+            final State helperState = new State(state);
+            // every other helper starts a ply deeper so the threads don't all search the same depth at the same time
+            final int firstDepth = 1 + i % 2;
+            exec.submit(() -> helper.help(helperState, firstDepth, MAX_SEARCH_DEPTH));
+        }
 
-        ExecutorService exec = Executors.newSingleThreadExecutor();
         Future<Move> resultFuture;
         if (useIterativeDeepening) {
             resultFuture = exec.submit(() -> {
-                int depth = 1;
-                ScoredMove result = new ScoredMove(Integer.MIN_VALUE, null);
-                ScoredMove latestDecision = new ScoredMove(Integer.MIN_VALUE, null);
-                List<ScoredMove> sortedPreviousScores = null;
-
-                while (true) {
-                    sortedPreviousScores = topLevelMaximize(initialSearchState, sortedPreviousScores, depth++);
-                    if (!sortedPreviousScores.isEmpty()) {
-                        latestDecision = sortedPreviousScores.get(0);
+                try {
+                    int depth = 1;
+                    ScoredMove result = new ScoredMove(-INFINITY, MoveCode.NONE);
+                    ScoredMove latestDecision = new ScoredMove(-INFINITY, MoveCode.NONE);
+                    List<ScoredMove> sortedPreviousScores = null;
+
+                    while (depth <= MAX_SEARCH_DEPTH) {
+                        sortedPreviousScores = sortedPreviousScores == null || sortedPreviousScores.isEmpty() || multiPv > 1
+                                ? main.topLevelMaximize(state, sortedPreviousScores, depth)
+                                : main.aspirationSearch(state, sortedPreviousScores, depth, aspirationStats);
+                        if (!sortedPreviousScores.isEmpty()) {
+                            latestDecision = sortedPreviousScores.get(0);
+                        }
+
+                        if (!interruptFlag.get()) {
+                            // always take the last depth decision
+                            result = latestDecision;
+                            analysis.set(analysisOf(sortedPreviousScores, depth, multiPv));
+                        } else {
+                            break;
+                        }
+
+                        TimeManager timeManager = this.timeManager;
+                        if (timeManager != null && !timeManager.iterationDone(depth, result.move, result.val, sortedPreviousScores.size()))
+                            break;
+                        ++depth;
                     }
-
-                    if (!interruptFlag.get()) {
-                        // always take the last depth decision
+                    // if we were interrupted, means we're at the last possible depth and we can use the move found there
+                    if (latestDecision.val > result.val)
                         result = latestDecision;
-                    } else {
-                        break;
-                    }
-                }
-                TranspositionTable.clear();
-                // if we were interrupted, means we're at the last possible depth and we can use the move found there
-                if (latestDecision.val > result.val)
-                    result = latestDecision;
 
-                return result.move.move;
+                    return MoveCode.toMove(result.move);
+                } finally {
+                    helpersStopFlag.set(true);
+                }
             });
         } else {
             resultFuture = exec.submit(() -> {
-                // 1 depth run to pre-order moves by heuristic and to ensure that a move is found
-                List<ScoredMove> sortedPreviousScores = topLevelMaximize(initialSearchState, null, 1);
-                ScoredMove result = sortedPreviousScores.get(0);
+                try {
+                    // 1 depth run to pre-order moves by heuristic and to ensure that a move is found
+                    List<ScoredMove> sortedPreviousScores = main.topLevelMaximize(state, null, 1);
+                    ScoredMove result = sortedPreviousScores.get(0);
 
-                sortedPreviousScores = topLevelMaximize(initialSearchState, null, depthLimit);
-                if (!sortedPreviousScores.isEmpty()) {
-                    result = sortedPreviousScores.get(0);
-                }
+                    sortedPreviousScores = splitPool == null
+                            ? main.topLevelMaximize(state, null, depthLimit)
+                            : splitPool.invoke(ForkJoinTask.adapt(() -> main.topLevelMaximize(state, null, depthLimit)));
+                    if (!sortedPreviousScores.isEmpty()) {
+                        result = sortedPreviousScores.get(0);
+                        if (!interruptFlag.get())
+                            analysis.set(analysisOf(sortedPreviousScores, depthLimit, multiPv));
+                    }
 
-                TranspositionTable.clear();
-                return result.move.move;
+                    return MoveCode.toMove(result.move);
+                } finally {
+                    helpersStopFlag.set(true);
+                    if (splitPool != null)
+                        splitPool.shutdown();
+                }
             });
         }
         exec.shutdown();
 
-        return new SearchInterruptHandle() {
+        return new AnalysisHandle() {
+            @Override
+            public Optional<Analysis> latestAnalysis() {
+                return Optional.ofNullable(analysis.get());
+            }
+
             @Override
             public Move interruptWithOutput() {
-                interrupt();
+                interruptFlag.set(true);
+                helpersStopFlag.set(true);
                 try {
                     return resultFuture.get();
                 } catch (InterruptedException | ExecutionException e) {
@@ -150,177 +508,488 @@ public class Minimax {
         };
     }
 
-    private void interrupt() {
-        interruptFlag.set(true);
+    /** Searches to a fixed depth on the calling thread, for offline tools such as BookBuilder that run many searches side by side.
+     * Shallower iterations are searched first to order the moves
+     * @return the best multiPv root moves, none if the game is over */
+    static Analysis analyze(State state, Heuristic heuristic, int depth, int multiPv) {
+        Searcher searcher = new Searcher(heuristic, new AtomicBoolean(false), null, false, multiPv);
+        List<ScoredMove> sortedScores = null;
+        for (int d = 1; d <= Math.min(depth, MAX_SEARCH_DEPTH); ++d)
+            sortedScores = searcher.topLevelMaximize(state, sortedScores, d);
+        return analysisOf(sortedScores, depth, multiPv);
+    }
+
+    private static Analysis analysisOf(List<ScoredMove> sortedScores, int depth, int multiPv) {
+        List<Analysis.Line> lines = new ArrayList<>();
+        for (int i = 0; i < Math.min(multiPv, sortedScores.size()); ++i) {
+            ScoredMove scored = sortedScores.get(i);
+            List<Move> pv = new ArrayList<>(scored.line.length);
+            for (int move : scored.line)
+                pv.add(MoveCode.toMove(move));
+            lines.add(new Analysis.Line(scored.val, pv, scored.move));
+        }
+        return new Analysis(depth, lines);
     }
 
-    /** Matches moves to their scores
-     * @return sorted list of legal moves matched to their scores for this iteration */
-    private List<ScoredMove> topLevelMaximize(State state, List<ScoredMove> sortedPreviousScores, int depth) {
-        if (gameOver(state))
-            return new ArrayList<>();
-
-        List<OrderedMove> moves;
-        if (sortedPreviousScores != null) {
-            moves = new ArrayList<>(sortedPreviousScores.size());
-            for (ScoredMove sm : sortedPreviousScores) {
-                moves.add(sm.move);
+    /** Young Brothers Wait split point: once the eldest brother has been searched and set a bound,
+     * the remaining siblings are searched in parallel and share the bound through this object.
+     * Scores are from the point of view of the player to move at the split point */
+    private static class SplitPoint {
+        final SplitPoint parent;
+        /// Set when a sibling fails high, the searches below this split point are abandoned
+        volatile boolean cutoff = false;
+        int alpha;
+        final int beta;
+        int val;
+        int bestMove;
+        /// At the root we keep every move's score
+        final List<ScoredMove> recordedMoves;
+
+        SplitPoint(SplitPoint parent, int alpha, int beta, int val, int bestMove, List<ScoredMove> recordedMoves) {
+            this.parent = parent;
+            this.alpha = alpha;
+            this.beta = beta;
+            this.val = val;
+            this.bestMove = bestMove;
+            this.recordedMoves = recordedMoves;
+        }
+
+        /// Same bookkeeping as the serial loop in negamax
+        /// @param line principal variation of the move, only kept at the root
+        synchronized void update(int childVal, int move, int[] line) {
+            if (recordedMoves != null)
+                recordedMoves.add(new ScoredMove(childVal, move, childVal > alpha ? line : new int[] {move}));
+            if (childVal > val) {
+                val = childVal;
+                bestMove = move;
             }
-        } else {
-            moves = MoveGenerator.generate(state.board, state.maximizingPlayer, state.minimizingPlayer);
-            moves.sort(OrderedMove::compareTo);
-        }
-
-        int alpha = Integer.MIN_VALUE;
-        List<ScoredMove> recordedMoves = new ArrayList<>();
-        for (OrderedMove m : moves) {
-            int minVal = minimize(moveResult(state, m.move, state.maximizingPlayer), alpha, Integer.MAX_VALUE, qSearchDepth(m, depth), depth - 1);
-            //System.out.println(minVal + " " + MoveParser.toText(m.move) + " " + m.type);
-            if (interruptFlag.get()) {
-                // if interruptFlag is set, value returned by minimize likely doesn't make sense
-                break;
+            if (val >= beta)
+                cutoff = true;
+            else
+                alpha = Math.max(alpha, val);
+        }
+
+        boolean cutoffInChain() {
+            for (SplitPoint sp = this; sp != null; sp = sp.parent) {
+                if (sp.cutoff)
+                    return true;
             }
-            recordedMoves.add(new ScoredMove(minVal, m));
-            alpha = Math.max(alpha, minVal);
+            return false;
         }
+    }
 
-        // put moves with highest previously found score at the front
-        recordedMoves.sort(Collections.reverseOrder());
+    /** Searches one younger brother of a split point on a copy of the split point's state */
+    private static class SiblingTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        /** States of the pool worker that are free to reuse, so a task doesn't allocate a new one and keeps the killer
+         * and history tables its thread built up. A worker waiting on its own siblings runs other tasks meanwhile,
+         * those take another state off the stack */
+        private static final ThreadLocal<ArrayDeque<State>> FREE_STATES = ThreadLocal.withInitial(ArrayDeque::new);
+
+        private final Searcher searcher;
+        /// Stays at the split point while its siblings are searched
+        private final State parent;
+        private final int move;
+        private final SplitPoint splitPoint;
+        private final int depth;
+
+        SiblingTask(Searcher searcher, State parent, int move, SplitPoint splitPoint, int depth) {
+            this.searcher = searcher;
+            this.parent = parent;
+            this.move = move;
+            this.splitPoint = splitPoint;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (searcher.stopped())
+                return;
+
+            int alpha;
+            synchronized (splitPoint) {
+                alpha = splitPoint.alpha;
+            }
 
-        return recordedMoves;
+            ArrayDeque<State> freeStates = FREE_STATES.get();
+            State state = freeStates.poll();
+            if (state == null)
+                state = new State(parent);
+            else
+                state.copyPosition(parent);
+            try {
+                state.makeMove(move, state.sideToMove);
+                int childVal = searcher.searchChild(state, alpha, splitPoint.beta, depth, false);
+                state.unmakeMove();
+
+                if (!searcher.stopped())
+                    splitPoint.update(childVal, move, splitPoint.recordedMoves != null ? state.lineOf(move) : null);
+            } finally {
+                freeStates.push(state);
+            }
+        }
     }
 
-    private int maximize(State state, int alpha, int beta, final int q, int depth) {
-        if (interruptFlag.get()) {
-            return alpha;
+    /** Runs the search on one thread, or one ForkJoin task when splitting.
+     * The main search, every Lazy SMP helper and every YBWC sibling have their own */
+    private static class Searcher {
+        private static final int MIN_SPLIT_DEPTH = 2;
+
+        private final Heuristic heuristic;
+        private final AtomicBoolean interruptFlag;
+        /// The split point this searcher is searching a sibling of, if any
+        private final SplitPoint splitPoint;
+        private final boolean splitting;
+        /// Number of root moves that get an exact score
+        private final int multiPv;
+
+        Searcher(Heuristic heuristic, AtomicBoolean interruptFlag, SplitPoint splitPoint, boolean splitting, int multiPv) {
+            this.heuristic = heuristic;
+            this.interruptFlag = interruptFlag;
+            this.splitPoint = splitPoint;
+            this.splitting = splitting;
+            this.multiPv = multiPv;
         }
 
-        if (gameOver(state) || depth + q == 0)
-            return heuristic.evaluate(state);
+        /// Stopped by an interrupt or by a cutoff at any split point above
+        boolean stopped() {
+            return interruptFlag.get() || splitPoint != null && splitPoint.cutoffInChain();
+        }
 
-        TableEntry entry = TranspositionTable.get(state.board, state.maximizingPlayer);
-        if (entry != null && depth+q<=entry.getDepth()) {
-            int score = entry.fetchHeuristic();
-            TableEntry.ScoreType type = entry.getScoreType();
-            switch(type) {
-                case LOWER_BOUND:
-                    if (alpha<score) {
-                        alpha = score;
-                    }
-                    break;
-                case UPPER_BOUND:
-                    if (beta>score) {
-                        beta = score;
-                    }
-                    break;
-                case EXACT_SCORE:
-                    return score;
-            }
-            if (alpha>=beta) {
-                return score;
+        /// Lazy SMP helper: iterative deepening whose results only end up in the transposition table
+        void help(State state, int depth, int lastDepth) {
+            List<ScoredMove> sortedPreviousScores = null;
+            while (depth <= lastDepth && !stopped())
+                sortedPreviousScores = topLevelMaximize(state, sortedPreviousScores, depth++);
+        }
+
+        /// Forks moves[first..moveCount) as tasks and waits for all of them
+        private void searchSiblings(State state, int[] moves, int first, int moveCount, SplitPoint sp, int depth) {
+            List<SiblingTask> tasks = new ArrayList<>(moveCount - first);
+            for (int i = first; i < moveCount; ++i) {
+                int m = moves[i];
+                Searcher sibling = new Searcher(heuristic, interruptFlag, sp, true, 1);
+                tasks.add(new SiblingTask(sibling, state, m, sp, depth - 1));
             }
+            ForkJoinTask.invokeAll(tasks);
         }
 
-        int val = Integer.MIN_VALUE;
-        List<OrderedMove> moves = MoveGenerator.generate(state.board, state.maximizingPlayer, state.minimizingPlayer);
-        moves.sort(OrderedMove::compareTo);
-        for (OrderedMove m : moves) {
-            val = Math.max(val, minimize(moveResult(state, m.move, state.maximizingPlayer), alpha, beta, Math.max(qSearchDepth(m, depth), q), depth - 1));
-            if (val >= beta) break/*return val*/;
-            alpha = Math.max(alpha, val);
+        /** Searches the root with a window around the previous iteration's best score. If the best score falls outside
+         * the window it's widened on that side and the root is searched again, until the score is inside or the window is unbounded
+         * @param sortedPreviousScores the previous iteration's result, not empty */
+        private List<ScoredMove> aspirationSearch(State state, List<ScoredMove> sortedPreviousScores, int depth, AspirationStats stats) {
+            stats.iterations.incrementAndGet();
+            int previous = sortedPreviousScores.get(0).val;
+            int delta = ASPIRATION_WINDOW;
+            int alpha = Math.max(previous - delta, -INFINITY);
+            int beta = Math.min(previous + delta, INFINITY);
+            while (true) {
+                List<ScoredMove> scores = topLevelMaximize(state, sortedPreviousScores, depth, alpha, beta);
+                if (stopped() || scores.isEmpty())
+                    return scores;
+
+                int best = scores.get(0).val;
+                delta *= ASPIRATION_GROWTH;
+                if (best <= alpha && alpha > -INFINITY) {
+                    stats.failLows.incrementAndGet();
+                    alpha = Math.max(best - delta, -INFINITY);
+                } else if (best >= beta && beta < INFINITY) {
+                    // the search stopped at the move that failed high, search it first next time
+                    stats.failHighs.incrementAndGet();
+                    beta = Math.min(best + delta, INFINITY);
+                    sortedPreviousScores = withFirst(sortedPreviousScores, scores.get(0));
+                } else {
+                    return scores;
+                }
+            }
         }
-        if (!interruptFlag.get()) {
-            TranspositionTable.put(state.board, state.maximizingPlayer, new TableEntry(val, alpha, beta, depth+q));
+
+        private List<ScoredMove> topLevelMaximize(State state, List<ScoredMove> sortedPreviousScores, int depth) {
+            return topLevelMaximize(state, sortedPreviousScores, depth, -INFINITY, INFINITY);
         }
 
-        return val;
-    }
+        /** Matches moves to their scores. Stops at the first move scoring at least beta,
+         * moves scoring at most alpha only get an upper bound
+         * @return sorted list of legal moves matched to their scores for this iteration */
+        private List<ScoredMove> topLevelMaximize(State state, List<ScoredMove> sortedPreviousScores, int depth, int alpha, int beta) {
+            if (gameOver(state))
+                return new ArrayList<>();
+
+            int[] moves = state.moveBuffer();
+            int moveCount;
+            if (sortedPreviousScores != null) {
+                moveCount = sortedPreviousScores.size();
+                for (int i = 0; i < moveCount; ++i) {
+                    moves[i] = sortedPreviousScores.get(i).move;
+                }
+            } else {
+                moveCount = MoveGenerator.generate(state.board, state.maximizingPlayer, state.minimizingPlayer, moves);
+                Arrays.sort(moves, 0, moveCount);
+            }
+
+            List<ScoredMove> recordedMoves = new ArrayList<>();
+            // best multiPv scores so far, highest first. Moves are searched with the lowest of them as alpha
+            int[] bestScores = new int[multiPv];
+            Arrays.fill(bestScores, alpha);
+            for (int i = 0; i < moveCount; ++i) {
+                if (i == 1 && splitting && multiPv == 1 && depth >= MIN_SPLIT_DEPTH) {
+                    SplitPoint sp = new SplitPoint(splitPoint, bestScores[0], beta, -INFINITY, MoveCode.NONE, recordedMoves);
+                    searchSiblings(state, moves, 1, moveCount, sp, depth);
+                    break;
+                }
+
+                int m = moves[i];
+                int lineAlpha = bestScores[multiPv - 1];
+                state.makeMove(m, state.maximizingPlayer);
+                int val = searchChild(state, lineAlpha, beta, depth - 1, i == 0);
+                state.unmakeMove();
+                //System.out.println(val + " " + MoveParser.toText(MoveCode.toMove(m)) + " " + MoveCode.type(m));
+                if (stopped()) {
+                    // if interruptFlag is set, value returned by the search likely doesn't make sense
+                    break;
+                }
+                // moves after the first that don't beat alpha only get an upper bound, which is enough to order them
+                recordedMoves.add(new ScoredMove(val, m, val > lineAlpha || i == 0 ? state.lineOf(m) : new int[] {m}));
+                if (val >= beta)
+                    break;
+                insertScore(bestScores, val);
+            }
+
+            // put moves with highest previously found score at the front
+            recordedMoves.sort(Collections.reverseOrder());
 
-    private int minimize(State state, int alpha, int beta, final int q, int depth) {
-        if (interruptFlag.get()) {
-            return beta;
+            return recordedMoves;
         }
 
-        if (gameOver(state) || depth + q == 0)
-            return heuristic.evaluate(state);
+        /// Principal variation search of the position after a move, from the point of view of the player who made it.
+        /// Apart from the first move, children are expected to fail low: they're searched with a null window
+        /// around alpha first, and only searched again with the full window if they beat it
+        private int searchChild(State state, int alpha, int beta, int depth, boolean firstMove) {
+            if (!firstMove) {
+                int val = -negamax(state, -alpha - 1, -alpha, depth, true);
+                if (val <= alpha || val >= beta || stopped())
+                    return val;
+            }
+            return -negamax(state, -beta, -alpha, depth, true);
+        }
 
-        TableEntry entry = TranspositionTable.get(state.board, state.maximizingPlayer);
-        if (entry != null && depth+q<=entry.getDepth()) {
-            int score = entry.fetchHeuristic();
-            TableEntry.ScoreType type = entry.getScoreType();
-            switch(type) {
-                case LOWER_BOUND:
-                    if (alpha<score) {
-                        alpha = score;
-                    }
+        /** Fail-soft alpha-beta, scores are from the point of view of the player to move
+         * @param allowNullMove false right after a null move, so the search never passes twice in a row */
+        private int negamax(State state, int alpha, int beta, int depth, boolean allowNullMove) {
+            state.clearPv();
+            if (stopped()) {
+                return alpha;
+            }
+
+            if (gameOver(state))
+                return evaluate(state);
+            if (depth <= 0)
+                return quiesce(state, alpha, beta, 0);
+
+            // canonical entries hold the hash move of the canonical position, it's transformed back to this board
+            long key = state.hash;
+            int transform = Symmetry.IDENTITY;
+            if (depth >= SYMMETRIC_KEY_MIN_DEPTH && TranspositionTable.symmetricKeys()) {
+                Symmetry.Canonical canonical = Symmetry.canonicalize(state.board, state.sideToMove);
+                key ^= TranspositionTable.positionKey(state.board, state.sideToMove) ^ canonical.key;
+                transform = canonical.transform;
+            }
+            long entry = TranspositionTable.get(key, state.maximizingPlayer);
+            if (entry != TableEntry.NONE && depth<=TableEntry.getDepth(entry)) {
+                // a bound only ends the search if it's outside the window, the window itself is left as is
+                // so the bound type stored for this node below matches the window it was searched with
+                int score = TableEntry.fetchHeuristic(entry);
+                switch (TableEntry.getScoreType(entry)) {
+                    case LOWER_BOUND:
+                        if (score >= beta)
+                            return score;
+                        break;
+                    case UPPER_BOUND:
+                        if (score <= alpha)
+                            return score;
+                        break;
+                    case EXACT_SCORE:
+                        return score;
+                }
+            }
+
+            final int originalAlpha = alpha;
+            byte player = state.sideToMove;
+            boolean pvNode = beta - alpha > 1;
+
+            // Null move pruning: if passing the turn and searching shallower still fails high, a real move would too.
+            // Not done twice in a row or in PV nodes, and not when passing would leave our marbles to be captured right away
+            if (!pvNode && depth >= NULL_MOVE_MIN_DEPTH && allowNullMove
+                    && !underCaptureThreat(state, player)) {
+                state.makeNullMove();
+                int nullVal = -negamax(state, -beta, -beta + 1, depth - 1 - NULL_MOVE_REDUCTION, false);
+                state.unmakeNullMove();
+                if (stopped())
+                    return alpha;
+                if (nullVal >= beta)
+                    // a win found after passing isn't a proven win
+                    return nullVal >= Heuristic.WIN_SCORE ? beta : nullVal;
+            }
+
+            int val = -INFINITY;
+            int bestMove = MoveCode.NONE;
+            MovePicker picker = state.movePicker();
+            picker.reset(state.board, player, Board.playersOpponent(player), Symmetry.transformMove(hashMove(entry), Symmetry.inverse(transform)),
+                    state.killer(0), state.killer(1), state.history(player));
+            int m;
+            int moveIndex = 0;
+            while ((m = picker.next()) != MoveCode.NONE) {
+                if (bestMove != MoveCode.NONE && splitting && depth >= MIN_SPLIT_DEPTH) {
+                    // Young Brothers Wait: the eldest brother set a bound, search the rest in parallel
+                    int[] moves = state.moveBuffer();
+                    moves[0] = m;
+                    int moveCount = picker.remaining(moves, 1);
+                    SplitPoint sp = new SplitPoint(splitPoint, alpha, beta, val, bestMove, null);
+                    searchSiblings(state, moves, 0, moveCount, sp, depth);
+                    val = sp.val;
+                    bestMove = sp.bestMove;
+                    if (pvNode && val > alpha)
+                        // the line below the best sibling stayed on its copy of the state
+                        state.updatePv(bestMove, false);
                     break;
-                case UPPER_BOUND:
-                    if (beta>score) {
-                        beta = score;
-                    }
+                }
+
+                boolean reduce = moveIndex++ >= LMR_MIN_MOVE_INDEX && depth >= LMR_MIN_DEPTH && !pvNode
+                        && isLateQuietMove(m) && m != state.killer(0) && m != state.killer(1);
+                state.makeMove(m, player);
+                int childVal;
+                if (reduce) {
+                    // Late move reduction: a quiet move ordered this late is expected to fail low even when searched shallower,
+                    // if it beats alpha anyway it's searched again at full depth
+                    childVal = -negamax(state, -alpha - 1, -alpha, depth - 1 - LMR_REDUCTION, true);
+                    if (childVal > alpha && !stopped())
+                        childVal = searchChild(state, alpha, beta, depth - 1, false);
+                } else {
+                    childVal = searchChild(state, alpha, beta, depth - 1, bestMove == MoveCode.NONE);
+                }
+                state.unmakeMove();
+                if (childVal > val) {
+                    val = childVal;
+                    bestMove = m;
+                    if (pvNode && val > alpha)
+                        state.updatePv(m, true);
+                }
+                if (val >= beta) {
+                    state.recordCutoff(m, player, depth);
                     break;
-                case EXACT_SCORE:
-                    return score;
+                }
+                alpha = Math.max(alpha, val);
+            }
+
+            if (!stopped()) {
+                TranspositionTable.put(key, state.maximizingPlayer,
+                        TableEntry.pack(val, originalAlpha, beta, depth, Symmetry.transformMove(bestMove, transform)));
+            }
+
+            return val;
+        }
+
+        /** Quiescence search at the horizon. The player to move can stand pat on the static evaluation
+         * or play one of their pushes, so leaves aren't evaluated in the middle of an exchange of marbles.
+         * Moves that can't bring the score up to alpha even by pushing a marble off are skipped (delta pruning)
+         * @param qPly plies played past the horizon, at most MAX_QUIESCENCE_PLIES */
+        private int quiesce(State state, int alpha, int beta, int qPly) {
+            state.clearPv();
+            if (stopped()) {
+                return alpha;
             }
-            if (alpha>=beta) {
-                return score;
+
+            // only PV nodes need the exact stand pat, elsewhere a bound outside the window does the same
+            boolean pvNode = beta - alpha > 1;
+            int standPat = pvNode ? evaluate(state) : evaluate(state, alpha, beta);
+            if (gameOver(state) || standPat >= beta || qPly >= MAX_QUIESCENCE_PLIES)
+                return standPat;
+            alpha = Math.max(alpha, standPat);
+
+            byte player = state.sideToMove;
+            int val = standPat;
+            // only generated past the stand pat, which often cuts the node off without them
+            int[] moves = state.moveBuffer();
+            int moveCount = MoveGenerator.generate(state.board, player, Board.playersOpponent(player), moves, MoveGenerator.NOISY);
+            Arrays.sort(moves, 0, moveCount);
+            for (int i = 0; i < moveCount; ++i) {
+                int m = moves[i];
+                int gain = MoveCode.isCapture(m) ? QUIESCENCE_MARBLE_VALUE : 0;
+                if (standPat + gain + DELTA_MARGIN <= alpha)
+                    continue;
+
+                state.makeMove(m, player);
+                int childVal = -quiesce(state, -beta, -alpha, qPly + 1);
+                state.unmakeMove();
+                if (childVal > val)
+                    val = childVal;
+                if (val >= beta)
+                    break;
+                alpha = Math.max(alpha, val);
             }
+            return val;
         }
 
-        int val = Integer.MAX_VALUE;
-        List<OrderedMove> moves = MoveGenerator.generate(state.board, state.minimizingPlayer, state.maximizingPlayer);
-        moves.sort(OrderedMove::compareTo);
-        for (OrderedMove m : moves) {
-            val = Math.min(val, maximize(moveResult(state, m.move, state.minimizingPlayer), alpha, beta, Math.max(qSearchDepth(m, depth), q), depth - 1));
-            if (val <= alpha) break/*return val**/;
-            beta = Math.min(beta, val);
+        private int evaluate(State state) {
+            return evaluate(state, -INFINITY, INFINITY);
         }
 
-        if (!interruptFlag.get()) {
-            TranspositionTable.put(state.board, state.maximizingPlayer, new TableEntry(val, alpha, beta, depth+q));
+        /// Static evaluation from the side to move's point of view, see Heuristic.evaluate(state, alpha, beta)
+        private int evaluate(State state, int alpha, int beta) {
+            if (state.sideToMove == state.maximizingPlayer)
+                return EvalCache.evaluate(heuristic, state, alpha, beta);
+            return -EvalCache.evaluate(heuristic, state, -beta, -alpha);
         }
+    }
+
+    /// Inserts the score into the descending scores if it's higher than the last one, dropping the last one
+    private static void insertScore(int[] scores, int score) {
+        int i = scores.length - 1;
+        if (score <= scores[i])
+            return;
+        for (; i > 0 && scores[i - 1] < score; --i)
+            scores[i] = scores[i - 1];
+        scores[i] = score;
+    }
 
-        return val;
+    /// Copy of the root moves with the given move moved to the front
+    private static List<ScoredMove> withFirst(List<ScoredMove> moves, ScoredMove first) {
+        List<ScoredMove> reordered = new ArrayList<>(moves.size());
+        reordered.add(first);
+        for (ScoredMove m : moves) {
+            if (m.move != first.move)
+                reordered.add(m);
+        }
+        return reordered;
     }
 
-    private static int qSearchDepth(OrderedMove m, int depth) {
-        // We only care about q if the move that leads to a leaf is a capturing one
-        if (depth != 1)
-            return 0;
+    /// Best move previously stored for this position, the move picker checks it's legal
+    private static int hashMove(long entry) {
+        return entry == TableEntry.NONE ? MoveCode.NONE : TableEntry.getBestMove(entry);
+    }
 
-        switch (m.type) {
-            case THREE_PUSH_TWO_CAPTURE:
-            case THREE_PUSH_ONE_CAPTURE:
-            case TWO_PUSH_ONE_CAPTURE:
-                return Q_SEARCH_DEPTH;
+    /// Quiet moves that are reduced when ordered late: side steps and inline moves of one or two marbles
+    private static boolean isLateQuietMove(int move) {
+        switch (MoveCode.type(move)) {
+            case THREE_SIDESTEP:
+            case TWO_SIDESTEP:
+            case TWO_INLINE:
+            case ONE:
+                return true;
             default:
-                return 0;
+                return false;
         }
     }
 
+    /// Whether the opponent could push one of the player's marbles off the board if it were their turn
+    private static boolean underCaptureThreat(State state, byte player) {
+        return MoveGenerator.captureThreats(state.board, Board.playersOpponent(player), player) != 0;
+    }
+
     static boolean gameOver(State state) {
         return state.movesLeftB == 0 && state.movesLeftW == 0
                 || state.maxPlayerScore == Board.SCORE_TO_WIN
                 || state.minPlayerScore == Board.SCORE_TO_WIN;
     }
-
-    private static State moveResult(State state, Move move, byte movingPlayer) {
-        final State newState = new State(state);
-        Optional<Byte>[] scoreUpdates = move.apply(newState.board);
-        for (Optional<Byte> maybePushedOff : scoreUpdates) {
-            maybePushedOff.ifPresent(piece -> {
-                if (piece == newState.maximizingPlayer)
-                    newState.minPlayerScore += 1;
-                else if (piece == newState.minimizingPlayer)
-                    newState.maxPlayerScore += 1;
-            });
-        }
-
-        if (movingPlayer == Board.WHITE)
-            newState.movesLeftW -= 1;
-        else if (movingPlayer == Board.BLACK)
-            newState.movesLeftB -= 1;
-
-        return newState;
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,69 @@
+/** Moves packed into an int so the search can generate and store them without allocating:
+ * bits 0-1 side (inline or which forward side a side step goes to), 2-3 marble count, 4-6 line direction,
+ * 7-12 from cell (BitBoard index), 13-16 OrderedMove.MoveType ordinal.
+ * For side steps the line direction is the direction from the "from" marble to the rest of the line.
+ * The move type is in the highest bits so sorting codes orders them like OrderedMove, and within a type
+ * the moves stay in board scan order. */
+public class MoveCode {
+    public static final int NONE = 0;
+
+    public static final int INLINE = 0;
+    public static final int SIDESTEP_LEFT = 1;
+    public static final int SIDESTEP_RIGHT = 2;
+
+    private static final OrderedMove.MoveType[] TYPES = OrderedMove.MoveType.values();
+    private static final BoardUtil.Direction[] DIRECTIONS = BoardUtil.Direction.values();
+
+    public static int encode(int from, int dir, int count, int side, OrderedMove.MoveType type) {
+        return side | count << 2 | dir << 4 | from << 7 | type.ordinal() << 13;
+    }
+
+    public static int side(int code) { return code & 0x3; }
+    public static int count(int code) { return code >>> 2 & 0x3; }
+    public static int direction(int code) { return code >>> 4 & 0x7; }
+    public static int from(int code) { return code >>> 7 & 0x3F; }
+    public static OrderedMove.MoveType type(int code) { return TYPES[code >>> 13 & 0xF]; }
+
+    /// Direction the marbles travel in, for side steps that's not the line direction
+    public static int travelDirection(int code) {
+        BoardUtil.Direction dir = DIRECTIONS[direction(code)];
+        switch (side(code)) {
+            case SIDESTEP_LEFT: return dir.forwardLeft().ordinal();
+            case SIDESTEP_RIGHT: return dir.forwardRight().ordinal();
+            default: return dir.ordinal();
+        }
+    }
+
+    /// Index into butterfly tables such as the history heuristic: from cell and the direction the marbles travel in
+    public static int butterflyIndex(int code) {
+        return from(code) * 6 + travelDirection(code);
+    }
+
+    /// Whether the move pushes an opponent marble off the board
+    public static boolean isCapture(int code) {
+        return (code >>> 13 & 0xF) <= OrderedMove.MoveType.TWO_PUSH_ONE_CAPTURE.ordinal();
+    }
+
+    /// Whether the move pushes opponent marbles, captures included
+    public static boolean isPush(int code) {
+        return (code >>> 13 & 0xF) <= OrderedMove.MoveType.TWO_PUSH_ONE.ordinal();
+    }
+
+    /// Converts to a Move for the GUI and MoveParser, the search itself only works with codes
+    public static Move toMove(int code) {
+        Coordinate from = BitBoard.CELL_COORDINATES[from(code)];
+        BoardUtil.Direction travel = DIRECTIONS[travelDirection(code)];
+        if (side(code) == INLINE)
+            return new Move(new Push(from, BoardUtil.neighborsOf(from).fromDirection(travel)));
+
+        BoardUtil.Direction line = DIRECTIONS[direction(code)];
+        Push[] pushes = new Push[count(code)];
+        Coordinate c = from;
+        for (int i = 0; i < pushes.length; ++i) {
+            pushes[i] = new Push(c, BoardUtil.neighborsOf(c).fromDirection(travel));
+            if (i < pushes.length - 1)
+                c = BoardUtil.neighborsOf(c).fromDirection(line).coordinate;
+        }
+        return new Move(pushes);
+    }
+}
@@ -3,6 +3,8 @@ import java.util.*;
 // Generates legal moves for a given game state
 public class MoveGenerator {
 
+    private static final BoardUtil.Direction[] DIRECTIONS = BoardUtil.Direction.values();
+
     // Assesses if a side step in the given direction is legal
     private static Optional<OrderedMove> maybeSideStep(byte[][] board, BoardUtil.Direction side, Coordinate... coords) {
         Push[] pushes = new Push[coords.length];
@@ -108,6 +110,217 @@ public class MoveGenerator {
         }
         return moves;
     }
+    /// Upper bound on the number of legal moves in a position: 14 marbles, 6 directions,
+    /// at most one inline move and four side steps per marble and direction
+    public static final int MAX_MOVES = 14 * 6 * 5;
+
+    private static final int[] FORWARD_LEFT = new int[6];
+    private static final int[] FORWARD_RIGHT = new int[6];
+    static {
+        for (BoardUtil.Direction dir : DIRECTIONS) {
+            FORWARD_LEFT[dir.ordinal()] = dir.forwardLeft().ordinal();
+            FORWARD_RIGHT[dir.ordinal()] = dir.forwardRight().ordinal();
+        }
+    }
+
+    private static boolean isEmpty(long empty, int cell) {
+        return cell != BitBoard.NO_CELL && (empty & 1L << cell) != 0;
+    }
+
+    /// Kinds of moves to generate: NOISY are the inline moves pushing opponent marbles (captures included),
+    /// QUIET the remaining inline moves and the side steps
+    public static final int NOISY = 1;
+    public static final int QUIET = 2;
+    public static final int ALL = NOISY | QUIET;
+
+    // Bitboard counterpart of collectFromDirection, writes the legal moves of the given kinds as MoveCodes into moves starting at n
+    // Returns the new number of moves
+    private static int collectFromDirection(long player, long opponent, long empty, int[] moves, int n, int from, int dir, int kinds) {
+        boolean quiet = (kinds & QUIET) != 0;
+        int left = FORWARD_LEFT[dir];
+        int right = FORWARD_RIGHT[dir];
+
+        int playerMarbleCnt = 1;
+        int opponentMarbleCnt = 0;
+
+        int middle = BitBoard.NO_CELL;
+        int next = BitBoard.neighbor(from, dir);
+        // Count player's pieces
+        while ((player & 1L << next) != 0) {
+            playerMarbleCnt += 1;
+            if (playerMarbleCnt == 2)
+                middle = next;
+            // side steps are quiet moves
+            if (quiet && playerMarbleCnt == 2) {
+                // potential 2-marble side steps
+                if (isEmpty(empty, BitBoard.neighbor(from, left)) && isEmpty(empty, BitBoard.neighbor(middle, left)))
+                    moves[n++] = MoveCode.encode(from, dir, 2, MoveCode.SIDESTEP_LEFT, OrderedMove.MoveType.TWO_SIDESTEP);
+                if (isEmpty(empty, BitBoard.neighbor(from, right)) && isEmpty(empty, BitBoard.neighbor(middle, right)))
+                    moves[n++] = MoveCode.encode(from, dir, 2, MoveCode.SIDESTEP_RIGHT, OrderedMove.MoveType.TWO_SIDESTEP);
+            } else if (quiet && playerMarbleCnt == 3) {
+                // potential 3-marble side steps
+                if (isEmpty(empty, BitBoard.neighbor(from, left)) && isEmpty(empty, BitBoard.neighbor(middle, left))
+                        && isEmpty(empty, BitBoard.neighbor(next, left)))
+                    moves[n++] = MoveCode.encode(from, dir, 3, MoveCode.SIDESTEP_LEFT, OrderedMove.MoveType.THREE_SIDESTEP);
+                if (isEmpty(empty, BitBoard.neighbor(from, right)) && isEmpty(empty, BitBoard.neighbor(middle, right))
+                        && isEmpty(empty, BitBoard.neighbor(next, right)))
+                    moves[n++] = MoveCode.encode(from, dir, 3, MoveCode.SIDESTEP_RIGHT, OrderedMove.MoveType.THREE_SIDESTEP);
+            }
+            next = BitBoard.neighbor(next, dir);
+            // illegal inline move
+            if (next == BitBoard.NO_CELL || playerMarbleCnt == 4)
+                return n;
+        }
+
+        boolean canPush;
+        // Count opponents pieces
+        while ((opponent & 1L << next) != 0) {
+            opponentMarbleCnt += 1;
+            next = BitBoard.neighbor(next, dir);
+            canPush = playerMarbleCnt > opponentMarbleCnt;
+            if (next == BitBoard.NO_CELL || !canPush) {
+                if (canPush && (kinds & NOISY) != 0)
+                    moves[n++] = MoveCode.encode(from, dir, playerMarbleCnt, MoveCode.INLINE,
+                            OrderedMove.inlineType(playerMarbleCnt, opponentMarbleCnt, true));
+                return n;
+            }
+        }
+
+        // Inline move ending with an empty cell, a push if opponent marbles are in front of it
+        if ((empty & 1L << next) != 0 && (kinds & (opponentMarbleCnt > 0 ? NOISY : QUIET)) != 0)
+            moves[n++] = MoveCode.encode(from, dir, playerMarbleCnt, MoveCode.INLINE,
+                    OrderedMove.inlineType(playerMarbleCnt, opponentMarbleCnt, false));
+        return n;
+    }
+
+    /** Allocation free generation for the search. Writes the legal moves as MoveCodes to the start of moves,
+     * which must hold at least MAX_MOVES, in the same order as the byte[][] generator.
+     * @return the number of moves written */
+    public static int generate(BitBoard board, byte playerPiece, byte opponentPiece, int[] moves) {
+        return generate(board, playerPiece, opponentPiece, moves, ALL);
+    }
+
+    /// Same as generate, but only writes the moves of the given kinds (NOISY, QUIET or ALL)
+    public static int generate(BitBoard board, byte playerPiece, byte opponentPiece, int[] moves, int kinds) {
+        long player = board.pieces(playerPiece);
+        long opponent = board.pieces(opponentPiece);
+        long empty = ~(player | opponent) & BitBoard.ALL_CELLS;
+        int n = 0;
+        for (long bits = player; bits != 0; bits &= bits - 1) {
+            int from = Long.numberOfTrailingZeros(bits);
+            for (int dir = 0; dir < 6; ++dir) {
+                if (BitBoard.neighbor(from, dir) != BitBoard.NO_CELL)
+                    n = collectFromDirection(player, opponent, empty, moves, n, from, dir, kinds);
+            }
+        }
+        return n;
+    }
+
+    static final int NO_PUSH = -1;
+    static final int CAPTURE_FLAG = 1 << 6;
+
+    /// Looks for the inline move of the line starting at from in direction dir that pushes opponent marbles,
+    /// following the same rules as collectFromDirection.
+    /// @return NO_PUSH, or the cell of the front opponent marble, with CAPTURE_FLAG set if it goes off the board
+    static int pushFront(long player, long opponent, int from, int dir) {
+        int next = BitBoard.neighbor(from, dir);
+        // a single marble can't push
+        if (next == BitBoard.NO_CELL || (player & 1L << next) == 0)
+            return NO_PUSH;
+        int playerMarbleCnt = 2;
+        next = BitBoard.neighbor(next, dir);
+        if (next != BitBoard.NO_CELL && (player & 1L << next) != 0) {
+            playerMarbleCnt = 3;
+            next = BitBoard.neighbor(next, dir);
+        }
+        if (next == BitBoard.NO_CELL || (opponent & 1L << next) == 0)
+            return NO_PUSH;
+
+        int front = next;
+        int opponentMarbleCnt = 1;
+        next = BitBoard.neighbor(next, dir);
+        while (next != BitBoard.NO_CELL && (opponent & 1L << next) != 0) {
+            front = next;
+            if (++opponentMarbleCnt >= playerMarbleCnt)
+                return NO_PUSH;
+            next = BitBoard.neighbor(next, dir);
+        }
+        if (next == BitBoard.NO_CELL)
+            return front | CAPTURE_FLAG;
+        return (player & 1L << next) == 0 ? front : NO_PUSH;
+    }
+
+    /// Pushes and captures packed by countPushes
+    public static int pushCount(int counts) { return counts & 0xFFFF; }
+    public static int captureCount(int counts) { return counts >>> 16; }
+
+    /** Counts the moves generate(..., NOISY) would write, straight from the bitboards without encoding any move.
+     * For the evaluation, which only needs how many there are
+     * @return captures << 16 | pushes that don't capture, read with captureCount and pushCount */
+    public static int countPushes(BitBoard board, byte playerPiece, byte opponentPiece) {
+        long player = board.pieces(playerPiece);
+        long opponent = board.pieces(opponentPiece);
+        int pushes = 0;
+        int captures = 0;
+        for (long bits = player; bits != 0; bits &= bits - 1) {
+            int from = Long.numberOfTrailingZeros(bits);
+            // only lines of 2 or 3 marbles push, so a marble with no friendly neighbor is skipped
+            if ((BitBoard.NEIGHBOR_MASK[from] & player) == 0)
+                continue;
+            for (int dir = 0; dir < 6; ++dir) {
+                int front = pushFront(player, opponent, from, dir);
+                if (front == NO_PUSH)
+                    continue;
+                if ((front & CAPTURE_FLAG) != 0)
+                    ++captures;
+                else
+                    ++pushes;
+            }
+        }
+        return captures << 16 | pushes;
+    }
+
+    /// Mask of the opponent marbles the player can push off the board with their next move
+    public static long captureThreats(BitBoard board, byte playerPiece, byte opponentPiece) {
+        long player = board.pieces(playerPiece);
+        long opponent = board.pieces(opponentPiece);
+        long threatened = 0;
+        // only marbles on the edge can be pushed off, so only lines next to them are looked at
+        if ((opponent & BitBoard.EDGE_MASK) == 0)
+            return 0;
+        for (long bits = player; bits != 0; bits &= bits - 1) {
+            int from = Long.numberOfTrailingZeros(bits);
+            if ((BitBoard.NEIGHBOR_MASK[from] & player) == 0)
+                continue;
+            for (int dir = 0; dir < 6; ++dir) {
+                int front = pushFront(player, opponent, from, dir);
+                if (front != NO_PUSH && (front & CAPTURE_FLAG) != 0)
+                    threatened |= 1L << (front & ~CAPTURE_FLAG);
+            }
+        }
+        return threatened;
+    }
+
+    /// Checks that a move code, e.g. a hash or killer move from another position, is legal here
+    /// by generating the moves from its cell in its direction. scratch must hold at least 5 moves
+    public static boolean isLegal(BitBoard board, byte playerPiece, byte opponentPiece, int code, int[] scratch) {
+        int from = MoveCode.from(code);
+        int dir = MoveCode.direction(code);
+        long player = board.pieces(playerPiece);
+        if (code == MoveCode.NONE || from >= BitBoard.CELL_COUNT || dir >= 6
+                || (player & 1L << from) == 0 || BitBoard.neighbor(from, dir) == BitBoard.NO_CELL)
+            return false;
+
+        long opponent = board.pieces(opponentPiece);
+        long empty = ~(player | opponent) & BitBoard.ALL_CELLS;
+        int n = collectFromDirection(player, opponent, empty, scratch, 0, from, dir, ALL);
+        for (int i = 0; i < n; ++i) {
+            if (scratch[i] == code)
+                return true;
+        }
+        return false;
+    }
+
     //gets a random move generated from
     public static Move firstRandMove(byte[][] board) {
         List<OrderedMove> moves = generate(board, Board.BLACK, Board.WHITE);
@@ -0,0 +1,135 @@
+import java.util.Arrays;
+
+/** Hands out the moves of a search node one stage at a time: the hash move, captures, other pushes,
+ * killer moves and finally the quiet moves, ordered by their history score. A stage is only generated once the previous ones are used up,
+ * so a node that cuts off on an early move skips most of the generation and sorting.
+ * Each ply of a State has its own picker, see State.movePicker */
+class MovePicker {
+    private static final int HASH_MOVE = 0;
+    private static final int GENERATE_NOISY = 1;
+    private static final int CAPTURES = 2;
+    private static final int PUSHES = 3;
+    private static final int KILLERS = 4;
+    private static final int GENERATE_QUIET = 5;
+    private static final int QUIET = 6;
+    private static final int DONE = 7;
+
+    private final int[] moves = new int[MoveGenerator.MAX_MOVES];
+    private final int[] scratch = new int[5];
+    /// Sort keys of the quiet moves, history score in the high bits and the move itself in the low bits
+    private final long[] keys = new long[MoveGenerator.MAX_MOVES];
+
+    private BitBoard board;
+    private byte playerPiece;
+    private byte opponentPiece;
+    private int hashMove;
+    private int killer1;
+    private int killer2;
+    private int[] history;
+
+    private int stage;
+    private int index;
+    private int count;
+
+    /// Starts picking moves for a new node. The hash and killer moves may come from other positions,
+    /// they're only played if legal here. Pass MoveCode.NONE for any that's missing.
+    /// history is indexed by MoveCode.butterflyIndex, quiet moves with higher scores are handed out first
+    void reset(BitBoard board, byte playerPiece, byte opponentPiece, int hashMove, int killer1, int killer2, int[] history) {
+        this.board = board;
+        this.playerPiece = playerPiece;
+        this.opponentPiece = opponentPiece;
+        this.hashMove = MoveGenerator.isLegal(board, playerPiece, opponentPiece, hashMove, scratch) ? hashMove : MoveCode.NONE;
+        this.killer1 = killer1;
+        this.killer2 = killer2 != killer1 ? killer2 : MoveCode.NONE;
+        this.history = history;
+        this.stage = HASH_MOVE;
+        this.index = 0;
+        this.count = 0;
+    }
+
+    /// @return the next move to search, MoveCode.NONE when there are no more
+    int next() {
+        while (true) {
+            switch (stage) {
+                case HASH_MOVE:
+                    stage = GENERATE_NOISY;
+                    if (hashMove != MoveCode.NONE)
+                        return hashMove;
+                    break;
+                case GENERATE_NOISY:
+                    // captures and pushes are sorted together, captures come first
+                    count = MoveGenerator.generate(board, playerPiece, opponentPiece, moves, MoveGenerator.NOISY);
+                    Arrays.sort(moves, 0, count);
+                    index = 0;
+                    stage = CAPTURES;
+                    break;
+                case CAPTURES:
+                    if (index < count && MoveCode.isCapture(moves[index])) {
+                        int m = moves[index++];
+                        if (m != hashMove)
+                            return m;
+                    } else {
+                        stage = PUSHES;
+                    }
+                    break;
+                case PUSHES:
+                    if (index < count) {
+                        int m = moves[index++];
+                        if (m != hashMove)
+                            return m;
+                    } else {
+                        stage = KILLERS;
+                        index = 0;
+                    }
+                    break;
+                case KILLERS:
+                    if (index < 2) {
+                        // killers are only handed out here if they're quiet, the noisy ones came with the captures and pushes
+                        int killer = index++ == 0 ? killer1 : killer2;
+                        if (isQuietKiller(killer))
+                            return killer;
+                    } else {
+                        stage = GENERATE_QUIET;
+                    }
+                    break;
+                case GENERATE_QUIET:
+                    count = MoveGenerator.generate(board, playerPiece, opponentPiece, moves, MoveGenerator.QUIET);
+                    // highest history first, ties keep the static order by type then board scan
+                    for (int i = 0; i < count; ++i)
+                        keys[i] = (long) -history[MoveCode.butterflyIndex(moves[i])] << 32 | moves[i];
+                    Arrays.sort(keys, 0, count);
+                    for (int i = 0; i < count; ++i)
+                        moves[i] = (int) keys[i];
+                    index = 0;
+                    stage = QUIET;
+                    break;
+                case QUIET:
+                    if (index < count) {
+                        int m = moves[index++];
+                        // legal quiet killers were already handed out
+                        if (m != hashMove && m != killer1 && m != killer2)
+                            return m;
+                    } else {
+                        stage = DONE;
+                    }
+                    break;
+                default:
+                    return MoveCode.NONE;
+            }
+        }
+    }
+
+    /// Copies the moves this picker hasn't handed out yet to out starting at offset
+    /// @return the new number of moves in out
+    int remaining(int[] out, int offset) {
+        int m;
+        while ((m = next()) != MoveCode.NONE)
+            out[offset++] = m;
+        return offset;
+    }
+
+    private boolean isQuietKiller(int move) {
+        return move != MoveCode.NONE && move != hashMove && !MoveCode.isPush(move)
+                && MoveGenerator.isLegal(board, playerPiece, opponentPiece, move, scratch);
+    }
+}
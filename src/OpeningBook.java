@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+/** Opening moves for the Standard, German Daisy and Belgian Daisy layouts, read from a binary file.
+ * The file is a 16 byte header (magic, record count) followed by 16 byte records of
+ * (canonical key, MoveCode, weight, score) sorted by key, so a position's moves are next to each other.
+ * The file is memory-mapped and binary searched in place, nothing is parsed onto the heap.
+ * Symmetric positions share their records: keys and moves are those of the canonical position (see Symmetry),
+ * and keys leave out the moves left, so one book works with any move limit. */
+public class OpeningBook {
+    public static final String DEFAULT_FILE = "abalone.book";
+
+    private static final long MAGIC = 0x4142_424F_4F4B_0002L; // "ABBOOK" and the format version
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 16;
+
+    /// Book without any positions, used when there's no book file
+    public static final OpeningBook EMPTY = new OpeningBook(ByteBuffer.allocate(HEADER_SIZE), 0);
+
+    /// One move of a book position
+    static class Entry {
+        final long key;
+        final int move;
+        /// Relative frequency the move is played with, 0 keeps it in the book without ever playing it
+        final int weight;
+        /// Search score of the move from the side to move's point of view
+        final int score;
+
+        Entry(long key, int move, int weight, int score) {
+            this.key = key;
+            this.move = move;
+            this.weight = Math.max(0, Math.min(Character.MAX_VALUE, weight));
+            this.score = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, score));
+        }
+    }
+
+    private final ByteBuffer records;
+    private final int count;
+    private final Random random = new Random();
+    private final int[] scratch = new int[5];
+
+    private OpeningBook(ByteBuffer records, int count) {
+        this.records = records;
+        this.count = count;
+    }
+
+    /// Maps the book file, a missing or malformed file gives the empty book
+    public static OpeningBook open(Path path) {
+        if (!Files.isRegularFile(path))
+            return EMPTY;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.capacity() < HEADER_SIZE || mapped.getLong(0) != MAGIC)
+                throw new IOException("not an opening book");
+            long count = mapped.getLong(8);
+            if (count < 0 || count > Integer.MAX_VALUE || HEADER_SIZE + count * RECORD_SIZE != mapped.capacity())
+                throw new IOException("truncated opening book");
+            return new OpeningBook(mapped, (int) count);
+        } catch (IOException e) {
+            System.err.println("Can't read opening book " + path + ": " + e.getMessage());
+            return EMPTY;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    private long keyAt(int i) {
+        return records.getLong(HEADER_SIZE + i * RECORD_SIZE);
+    }
+
+    /// The i-th record in key order
+    Entry entry(int i) {
+        int offset = HEADER_SIZE + i * RECORD_SIZE;
+        return new Entry(records.getLong(offset), records.getInt(offset + 8),
+                records.getChar(offset + 12), records.getShort(offset + 14));
+    }
+
+    /// Index of the first record with a key >= key
+    private int lowerBound(long key) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keyAt(mid) < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /// All the book moves of a canonical position, legal or not
+    List<Entry> entries(long key) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = lowerBound(key); i < count && keyAt(i) == key; ++i)
+            entries.add(entry(i));
+        return entries;
+    }
+
+    /// Picks one of the position's book moves at random, weighted by how often each should be played
+    /// @return empty when the position isn't in the book
+    public synchronized Optional<Move> probe(byte[][] board, byte sideToMove) {
+        if (count == 0)
+            return Optional.empty();
+        BitBoard bitBoard = new BitBoard(board);
+        byte opponent = Board.playersOpponent(sideToMove);
+        Symmetry.Canonical canonical = Symmetry.canonicalize(bitBoard, sideToMove);
+        int toBoard = Symmetry.inverse(canonical.transform);
+        List<Integer> playable = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        int totalWeight = 0;
+        for (Entry entry : entries(canonical.key)) {
+            int move = Symmetry.transformMove(entry.move, toBoard);
+            // a key collision could hand us a move from another position
+            if (entry.weight > 0 && MoveGenerator.isLegal(bitBoard, sideToMove, opponent, move, scratch)) {
+                playable.add(move);
+                weights.add(entry.weight);
+                totalWeight += entry.weight;
+            }
+        }
+        if (totalWeight == 0)
+            return Optional.empty();
+        int pick = random.nextInt(totalWeight);
+        for (int i = 0; i < playable.size(); ++i) {
+            pick -= weights.get(i);
+            if (pick < 0)
+                return Optional.of(MoveCode.toMove(playable.get(i)));
+        }
+        return Optional.empty();
+    }
+
+    /// Writes a sorted book file, replacing the old one only once the new one is complete
+    static void write(Path path, List<Entry> entries) throws IOException {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.<Entry>comparingLong(e -> e.key).thenComparingInt(e -> e.move));
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + sorted.size() * RECORD_SIZE);
+        buffer.putLong(MAGIC).putLong(sorted.size());
+        for (Entry entry : sorted)
+            buffer.putLong(entry.key).putInt(entry.move).putChar((char) entry.weight).putShort((short) entry.score);
+        buffer.flip();
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
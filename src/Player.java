@@ -8,8 +8,12 @@ public class Player {
     private final boolean usesIterativeDeepening;
     /** For depth limited search only */
     private final int depthLimit;
+    /** Lazy SMP search threads, 1 searches on a single thread */
+    private final int searchThreads;
+    /** Keeps searching on the opponent's turn, see Board.startPondering */
+    private final boolean ponders;
 
-    Player(Config.PlayerAgent agent, byte piece, int moveLimit, int timeLimitMs, Heuristic heuristic, boolean usesIterativeDeepening, int depthLimit) {
+    Player(Config.PlayerAgent agent, byte piece, int moveLimit, int timeLimitMs, Heuristic heuristic, boolean usesIterativeDeepening, int depthLimit, int searchThreads, boolean ponders) {
         this.agent = agent;
         this.piece = piece;
         this.score = 0;
@@ -18,6 +22,8 @@ public class Player {
         this.heuristic = heuristic;
         this.usesIterativeDeepening = usesIterativeDeepening;
         this.depthLimit = depthLimit;
+        this.searchThreads = searchThreads;
+        this.ponders = ponders;
     }
 
     Player(Player toCopy) {
@@ -29,6 +35,8 @@ public class Player {
         this.heuristic = toCopy.heuristic;
         this.usesIterativeDeepening = toCopy.usesIterativeDeepening;
         this.depthLimit = toCopy.depthLimit;
+        this.searchThreads = toCopy.searchThreads;
+        this.ponders = toCopy.ponders;
     }
 
     public Heuristic heuristic() { return heuristic; }
@@ -38,4 +46,6 @@ public class Player {
     public int getMoveLimit() { return moveLimit; }
     public boolean usesIterativeDeepening() { return usesIterativeDeepening; }
     public int depthLimit() { return depthLimit; }
+    public int searchThreads() { return searchThreads; }
+    public boolean ponders() { return ponders; }
 }
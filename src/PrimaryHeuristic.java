@@ -1,19 +1,37 @@
-import java.util.List;
-
 public class PrimaryHeuristic extends Heuristic {
 
     private static final int SCORE_WEIGHT = 1000;
     private static final int CENTER_WEIGHT = 2;
+    /// The opponent's aggression: pushes count once, captures twice
+    private static final int PUSH_WEIGHT = 1;
+    private static final int CAPTURE_WEIGHT = 2;
+
+    private static final int[] WEIGHTS = initWeights();
+
+    private static int[] initWeights() {
+        int[] weights = new int[FeatureVector.SIZE];
+        weights[FeatureVector.MAX + FeatureVector.CLOSENESS] = CENTER_WEIGHT;
+        weights[FeatureVector.MIN + FeatureVector.PUSHES] = -PUSH_WEIGHT;
+        weights[FeatureVector.MIN + FeatureVector.CAPTURES] = -CAPTURE_WEIGHT;
+        weights[FeatureVector.MIN + FeatureVector.GROUPING] = -1;
+        weights[FeatureVector.MAX + FeatureVector.SCORE] = SCORE_WEIGHT;
+        weights[FeatureVector.MIN + FeatureVector.SCORE] = -SCORE_WEIGHT;
+        return weights;
+    }
 
     @Override
     public int evaluate(final Minimax.State state) {
         if (Minimax.gameOver(state))
             return winLoss(state);
 
-        List<OrderedMove> minMoves = MoveGenerator.generate(state.board, state.minimizingPlayer, state.maximizingPlayer);
-        return closenessToCenter(state.board, state.maximizingPlayer) * CENTER_WEIGHT
-                - aggressionFactor(minMoves)
-                - grouping(state.board, state.minimizingPlayer)
-                + state.maxPlayerScore * SCORE_WEIGHT - state.minPlayerScore * SCORE_WEIGHT;
+        return weightedSum(state, WEIGHTS);
+    }
+
+    @Override
+    public int evaluate(final Minimax.State state, int alpha, int beta) {
+        if (Minimax.gameOver(state))
+            return winLoss(state);
+
+        return weightedSum(state, WEIGHTS, alpha, beta);
     }
 }
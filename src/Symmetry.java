@@ -0,0 +1,121 @@
+/** The 12 symmetries of the hexagonal board: the 6 rotations about the center cell, each with or without a reflection.
+ * Positions that are transforms of each other are the same position to the search and the book, so they can share
+ * entries under a canonical key, the smallest TranspositionTable.positionKey over the 12 transforms of the board.
+ * Moves of the canonical position map back to the actual board through the inverse of the transform that was used.
+ * Transforms are numbered 0-11: rotation by t % 6 steps of 60 degrees, reflected first for t >= 6 */
+public class Symmetry {
+    public static final int COUNT = 12;
+    public static final int IDENTITY = 0;
+
+    private static final int CENTER = Long.numberOfTrailingZeros(BitBoard.RING_MASK[0]);
+    /// Where transform t moves each direction and cell, indexed by t * 6 + direction and t * CELL_COUNT + cell
+    private static final int[] DIRECTION = initDirections();
+    private static final int[] CELL = initCells();
+    private static final int[] INVERSE = initInverses();
+
+    /** Canonical key of a position and the transform that takes the board to the canonical one */
+    static class Canonical {
+        final long key;
+        final int transform;
+
+        Canonical(long key, int transform) {
+            this.key = key;
+            this.transform = transform;
+        }
+    }
+
+    private static int[] initDirections() {
+        int[] directions = new int[COUNT * 6];
+        for (int t = 0; t < COUNT; ++t) {
+            for (int dir = 0; dir < 6; ++dir) {
+                // directions are in counterclockwise order, reflecting across the vertical axis reverses them (NW <-> NE, W <-> E, SW <-> SE)
+                int reflected = t >= 6 ? 5 - dir : dir;
+                directions[t * 6 + dir] = (reflected + t % 6) % 6;
+            }
+        }
+        return directions;
+    }
+
+    private static int[] initCells() {
+        int[] cells = new int[COUNT * BitBoard.CELL_COUNT];
+        for (int t = 0; t < COUNT; ++t) {
+            int base = t * BitBoard.CELL_COUNT;
+            // walk out from the center, each neighbor maps to the neighbor of the mapped cell in the mapped direction
+            boolean[] mapped = new boolean[BitBoard.CELL_COUNT];
+            int[] queue = new int[BitBoard.CELL_COUNT];
+            int head = 0, tail = 0;
+            cells[base + CENTER] = CENTER;
+            mapped[CENTER] = true;
+            queue[tail++] = CENTER;
+            while (head < tail) {
+                int cell = queue[head++];
+                for (int dir = 0; dir < 6; ++dir) {
+                    int next = BitBoard.neighbor(cell, dir);
+                    if (next != BitBoard.NO_CELL && !mapped[next]) {
+                        cells[base + next] = BitBoard.neighbor(cells[base + cell], DIRECTION[t * 6 + dir]);
+                        mapped[next] = true;
+                        queue[tail++] = next;
+                    }
+                }
+            }
+        }
+        return cells;
+    }
+
+    private static int[] initInverses() {
+        int[] inverses = new int[COUNT];
+        for (int t = 0; t < COUNT; ++t) {
+            for (int u = 0; u < COUNT; ++u) {
+                if (cell(u, cell(t, 0)) == 0 && cell(u, cell(t, CENTER - 1)) == CENTER - 1)
+                    inverses[t] = u;
+            }
+        }
+        return inverses;
+    }
+
+    public static int inverse(int transform) {
+        return INVERSE[transform];
+    }
+
+    public static int cell(int transform, int cell) {
+        return CELL[transform * BitBoard.CELL_COUNT + cell];
+    }
+
+    /// Moves every cell set in cells
+    public static long transform(long cells, int transform) {
+        int base = transform * BitBoard.CELL_COUNT;
+        long result = 0;
+        for (long bits = cells; bits != 0; bits &= bits - 1)
+            result |= 1L << CELL[base + Long.numberOfTrailingZeros(bits)];
+        return result;
+    }
+
+    public static BitBoard transform(BitBoard board, int transform) {
+        return new BitBoard(transform(board.black, transform), transform(board.white, transform));
+    }
+
+    /// The same move on the transformed board. A reflection turns side steps to the left into side steps to the right
+    public static int transformMove(int code, int transform) {
+        if (code == MoveCode.NONE || transform == IDENTITY)
+            return code;
+        int side = MoveCode.side(code);
+        if (transform >= 6 && side != MoveCode.INLINE)
+            side = side == MoveCode.SIDESTEP_LEFT ? MoveCode.SIDESTEP_RIGHT : MoveCode.SIDESTEP_LEFT;
+        return MoveCode.encode(cell(transform, MoveCode.from(code)), DIRECTION[transform * 6 + MoveCode.direction(code)],
+                MoveCode.count(code), side, MoveCode.type(code));
+    }
+
+    /// The smallest key over the transforms of the board, ties go to the lowest transform
+    public static Canonical canonicalize(BitBoard board, byte sideToMove) {
+        long bestKey = 0;
+        int best = IDENTITY;
+        for (int t = 0; t < COUNT; ++t) {
+            long key = TranspositionTable.displacementKey(transform(board.black, t), transform(board.white, t));
+            if (t == IDENTITY || key < bestKey) {
+                bestKey = key;
+                best = t;
+            }
+        }
+        return new Canonical(TranspositionTable.positionKey(transform(board, best), sideToMove), best);
+    }
+}
@@ -1,26 +1,40 @@
+/** Transposition table entries, packed into a single long so the table can be a flat long[]:
+ * bits 0-31 score, 32-48 best move code, 49-55 depth, 56-57 score type (ordinal + 1, so a stored entry is never NONE),
+ * 58-63 generation of the search that stored it (set by the TranspositionTable) */
 public class TableEntry {
-    private int heuristicVal;
-    private int depth;
-    private ScoreType type;
+    public static final long NONE = 0;
+    public static final int MAX_DEPTH = 0x7F;
+    public static final int GENERATIONS = 64;
+
     public enum ScoreType {
         UPPER_BOUND,
         LOWER_BOUND,
         EXACT_SCORE
     }
-    public TableEntry(int heuristicVal, int alpha, int beta, int depth) {
-        this.heuristicVal = heuristicVal;
-        this.depth = depth;
 
+    private static final ScoreType[] SCORE_TYPES = ScoreType.values();
+
+    public static ScoreType scoreType(int heuristicVal, int alpha, int beta) {
         if (alpha<heuristicVal && heuristicVal<beta) {
-            type = ScoreType.EXACT_SCORE;
+            return ScoreType.EXACT_SCORE;
         } else if (heuristicVal<=alpha) {
-            type = ScoreType.UPPER_BOUND;
-        } else if (heuristicVal>= beta) {
-            type = ScoreType.LOWER_BOUND;
+            return ScoreType.UPPER_BOUND;
+        } else {
+            return ScoreType.LOWER_BOUND;
         }
     }
 
-    public int fetchHeuristic() { return this.heuristicVal; }
-    public int getDepth() { return this.depth; }
-    public ScoreType getScoreType() { return this.type; }
+    public static long pack(int heuristicVal, int alpha, int beta, int depth, int bestMove) {
+        return heuristicVal & 0xFFFFFFFFL
+                | (long) (bestMove & 0x1FFFF) << 32
+                | (long) Math.min(depth, MAX_DEPTH) << 49
+                | (long) (scoreType(heuristicVal, alpha, beta).ordinal() + 1) << 56;
+    }
+
+    public static int fetchHeuristic(long entry) { return (int) entry; }
+    public static int getBestMove(long entry) { return (int) (entry >>> 32) & 0x1FFFF; }
+    public static int getDepth(long entry) { return (int) (entry >>> 49) & MAX_DEPTH; }
+    public static ScoreType getScoreType(long entry) { return SCORE_TYPES[((int) (entry >>> 56) & 0x3) - 1]; }
+    public static int getGeneration(long entry) { return (int) (entry >>> 58); }
+    public static long withGeneration(long entry, int generation) { return entry & ~(-1L << 58) | (long) generation << 58; }
 }
@@ -0,0 +1,123 @@
+/** Decides when the iterative deepening search of a move should stop, instead of always searching until
+ * the turn is almost over. Every move gets a soft deadline, after which no new iteration is started, and a hard one
+ * that an iteration must be predicted to finish by. The soft deadline moves earlier while the best move stays the same
+ * or when it's a forced move, and later when the score drops.
+ * The safety margin Board keeps before the end of the turn adapts to how long interrupting the search actually took.
+ * Used from both the GUI and the search thread, hence synchronized */
+public class TimeManager {
+    /// Share of the usable turn time spent before no new iteration is started, and in the last few moves of the game
+    private static final double SOFT_SHARE = 0.5;
+    private static final double FINAL_MOVES_SOFT_SHARE = 0.8;
+    private static final int FINAL_MOVES = 5;
+    /// Soft deadline factors for a best move that didn't change over STABLE_ITERATIONS iterations and for a score drop
+    private static final int STABLE_ITERATIONS = 3;
+    private static final double STABLE_FACTOR = 0.6;
+    private static final int SCORE_DROP = 100;
+    private static final double SCORE_DROP_FACTOR = 1.5;
+    /// Iterations get this much longer than the previous one until two of them have been timed
+    private static final double DEFAULT_GROWTH = 4;
+    private static final double MIN_GROWTH = 1.5;
+    private static final double MAX_GROWTH = 8;
+
+    private static final int MIN_SAFETY_MARGIN_MS = 50;
+    private static final int MAX_SAFETY_MARGIN_MS = 1000;
+    /// The margin is this many times the average interrupt latency, plus a step of the Board countdown
+    private static final int LATENCY_FACTOR = 2;
+    private static final int COUNTDOWN_STEP_MS = 10;
+
+    private double averageLatencyMs = Minimax.SAFE_TIMEOUT_THRESHOLD_MS / (double) LATENCY_FACTOR;
+    private int safetyMarginMs = Minimax.SAFE_TIMEOUT_THRESHOLD_MS;
+
+    private long startNs;
+    private long lastIterationEndNs;
+    private double softMs;
+    private double hardMs;
+    private double lastIterationMs;
+    private double growth;
+    private int bestMove;
+    private int stableIterations;
+    private int lastScore;
+    private boolean pondering;
+
+    /// Starts timing the search of a move
+    /// @param movesLeft moves the player has left, including this one
+    public synchronized void startMove(int timeLimitMs, int movesLeft) {
+        startDeadlines(timeLimitMs, movesLeft);
+        lastIterationEndNs = startNs;
+        lastIterationMs = 0;
+        growth = DEFAULT_GROWTH;
+        bestMove = MoveCode.NONE;
+        stableIterations = 0;
+        lastScore = 0;
+    }
+
+    /** On a ponder hit, makes the ponder search the search of the move. The deadlines start now, but the timing
+     * of the iteration in progress and how fast iterations grow carry over, so the next prediction includes the work
+     * already done while pondering
+     * @param movesLeft moves the player has left, including this one */
+    public synchronized void promote(int timeLimitMs, int movesLeft) {
+        startDeadlines(timeLimitMs, movesLeft);
+    }
+
+    private void startDeadlines(int timeLimitMs, int movesLeft) {
+        startNs = System.nanoTime();
+        hardMs = Math.max(0, timeLimitMs - safetyMarginMs);
+        softMs = hardMs * (movesLeft <= FINAL_MOVES ? FINAL_MOVES_SOFT_SHARE : SOFT_SHARE);
+        pondering = false;
+    }
+
+    /// Starts a search on the opponent's turn, it keeps deepening until promote is called on a ponder hit
+    public synchronized void startPondering() {
+        startMove(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        pondering = true;
+    }
+
+    /** Called by the search after every completed iteration
+     * @param moveCount legal moves at the root, with a single one there's nothing to think about
+     * @return whether to start the next iteration */
+    synchronized boolean iterationDone(int depth, int move, int score, int moveCount) {
+        long now = System.nanoTime();
+        double iterationMs = (now - lastIterationEndNs) / 1e6;
+        double elapsedMs = (now - startNs) / 1e6;
+        lastIterationEndNs = now;
+        // very short iterations say little about how the next one grows
+        if (lastIterationMs >= 1)
+            growth = Math.max(MIN_GROWTH, Math.min(MAX_GROWTH, iterationMs / lastIterationMs));
+        lastIterationMs = iterationMs;
+
+        if (pondering)
+            return true;
+        if (moveCount <= 1 || score >= Heuristic.WIN_SCORE)
+            return false;
+
+        if (depth > 1) {
+            if (move == bestMove) {
+                if (++stableIterations == STABLE_ITERATIONS)
+                    softMs *= STABLE_FACTOR;
+            } else {
+                stableIterations = 0;
+            }
+            if (score < lastScore - SCORE_DROP)
+                softMs = Math.min(hardMs, softMs * SCORE_DROP_FACTOR);
+        }
+        // a capture that has been the best move since the first iteration is as good as forced
+        if (MoveCode.isCapture(move) && stableIterations + 1 >= depth && depth >= STABLE_ITERATIONS)
+            return false;
+        bestMove = move;
+        lastScore = score;
+
+        return elapsedMs < softMs && elapsedMs + iterationMs * growth < hardMs;
+    }
+
+    /// How close to the end of the turn Board lets the search run before interrupting it
+    public synchronized int safetyMarginMs() {
+        return safetyMarginMs;
+    }
+
+    /// Records how long it took from interrupting the search to getting its move
+    public synchronized void recordInterruptLatency(long latencyMs) {
+        averageLatencyMs = 0.75 * averageLatencyMs + 0.25 * latencyMs;
+        safetyMarginMs = (int) Math.max(MIN_SAFETY_MARGIN_MS,
+                Math.min(MAX_SAFETY_MARGIN_MS, LATENCY_FACTOR * averageLatencyMs + COUNTDOWN_STEP_MS));
+    }
+}
@@ -1,77 +1,151 @@
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
+import java.util.Arrays;
 import java.util.Random;
 
+/** Fixed-size table of search results. Each bucket holds two entries of (key, packed TableEntry):
+ * the first is replaced only by searches at least as deep or when it's left over from an older search,
+ * the second is always replaced. The table is kept between moves and only reset on a new game or an undo.
+ * It's shared by all search threads without locking: the key is stored xor-ed with the data, so an entry
+ * torn by two threads writing at once fails verification and reads as a miss. */
 public class TranspositionTable {
-    private static Map<HashableState, TableEntry> transpostion = new HashMap<>();
+    public static final int DEFAULT_SIZE_MB = 64;
+    private static final int BUCKET_SIZE = 4; // in longs
+    private static final int MAX_BUCKETS = 1 << 27;
+
+    private static volatile long[] entries = new long[bucketsFor(DEFAULT_SIZE_MB) * BUCKET_SIZE];
+    private static volatile int generation = 0;
+    /// Whether the search looks up its deeper nodes by their canonical key, so symmetric positions share entries
+    private static volatile boolean symmetricKeys = false;
+
     public static final int WHITE_SEED = 0;
     public static final int BLACK_SEED = 1;
-    public static final int RANGE = 100000;
-    private static long[][][] table = initializeZobrist();;
+    /// Fixed so keys (and therefore searches) are reproducible between runs
+    private static final long ZOBRIST_SEED = 0x5EED_AB41_0E5EL;
+    private static long[][] table = initializeZobrist();
+    private static final long WHITE_TO_MOVE = new Random(ZOBRIST_SEED + 1).nextLong();
+    /// Scores are stored from the maximizing player's point of view, so it's part of the key
+    private static final long WHITE_MAXIMIZING = new Random(ZOBRIST_SEED + 2).nextLong();
 
+    /// Full key of a search state, the search keeps it up to date incrementally with the helpers below
+    public static long generateZobristKey(Minimax.State state) {
+        return positionKey(state.board, state.sideToMove)
+                ^ movesLeftKey(Board.BLACK, state.movesLeftB) ^ movesLeftKey(Board.WHITE, state.movesLeftW);
+    }
 
-    public static long generateZobristKey(byte[][] board) {
+    /// Key of the marbles and the side to move only, for tables that outlive a game such as the opening book
+    public static long positionKey(BitBoard board, byte sideToMove) {
+        long hash = displacementKey(board.black, board.white);
+        if (sideToMove == Board.WHITE)
+            hash ^= WHITE_TO_MOVE;
+        return hash;
+    }
+
+    /// Key difference for marbles appearing on or disappearing from the cells set in the xor masks
+    public static long displacementKey(long blackChanged, long whiteChanged) {
         long hash = 0;
-        for (int i = 0; i<board.length; i++) {
-            for (int j = 0; j<board[i].length; j++) {
-                if (board[i][j] != 'E') {
-                    int piece = board[i][j]=='W' ? WHITE_SEED : BLACK_SEED;
-                    hash ^= table[i][j][piece];
-                }
-            }
-        }
+        for (long bits = whiteChanged; bits != 0; bits &= bits - 1)
+            hash ^= table[Long.numberOfTrailingZeros(bits)][WHITE_SEED];
+        for (long bits = blackChanged; bits != 0; bits &= bits - 1)
+            hash ^= table[Long.numberOfTrailingZeros(bits)][BLACK_SEED];
         return hash;
     }
 
-    private static long[][][] initializeZobrist() {
-        Random rand = new Random();
-        long[][][] table = new long[9][9][2];
+    /// Key difference for passing the turn to the other player
+    public static long sideToMoveKey() {
+        return WHITE_TO_MOVE;
+    }
+
+    /// Moves left can be any configured limit, so instead of a table of keys we scramble the count (splitmix64)
+    public static long movesLeftKey(byte player, int movesLeft) {
+        return scramble(ZOBRIST_SEED + movesLeft * 2L + (player == Board.WHITE ? 1 : 0));
+    }
+
+    /// splitmix64 finalizer, spreads small or similar numbers over the whole range of keys
+    static long scramble(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long[][] initializeZobrist() {
+        Random rand = new Random(ZOBRIST_SEED);
+        long[][] table = new long[BitBoard.CELL_COUNT][2];
         for (int i = 0; i<table.length; i++) {
-            for (int j = 0; j<table[i].length; j++) {
-                for (int k = 0; k<table[i][j].length; k++) {
-                    table[i][j][k] = (long) rand.nextInt(RANGE);
-                }
+            for (int k = 0; k<table[i].length; k++) {
+                table[i][k] = rand.nextLong();
             }
         }
         return table;
     }
 
-    public static TableEntry get(byte[][] board, byte maxPlayer) {
-        long key = TranspositionTable.generateZobristKey(board);
-        HashableState hashicorp = new HashableState(key, maxPlayer);
-        return transpostion.get(hashicorp);
+    private static int bucketsFor(int sizeMb) {
+        long bytes = Math.max(1, sizeMb) * 1024L * 1024L;
+        return (int) Math.min(Long.highestOneBit(bytes / (BUCKET_SIZE * 8)), MAX_BUCKETS);
     }
 
-    public static void put(byte[][] board, byte maxPlayer, TableEntry entry) {
-        long key = TranspositionTable.generateZobristKey(board);
-        HashableState hashicorp = new HashableState(key, maxPlayer);
-        transpostion.put(hashicorp, entry);
+    /// Symmetric positions mostly come up in the opening, elsewhere canonicalizing is just overhead
+    public static void setSymmetricKeys(boolean symmetric) {
+        symmetricKeys = symmetric;
     }
 
-    public static void clear() { transpostion.clear(); }
-
-    private static class HashableState {
-        final long zKey;
-        final byte maxPlayer;
+    public static boolean symmetricKeys() {
+        return symmetricKeys;
+    }
 
-        public HashableState(long zKey, byte maxPlayer) {
-            this.maxPlayer = maxPlayer;
-            this.zKey = zKey;
+    /// Reallocates the table to fit in sizeMb megabytes, dropping all entries
+    public static void resize(int sizeMb) {
+        int buckets = bucketsFor(sizeMb);
+        if (entries.length == buckets * BUCKET_SIZE) {
+            clear();
+        } else {
+            entries = new long[buckets * BUCKET_SIZE];
+            generation = 0;
         }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            HashableState that = (HashableState) o;
-            return zKey == that.zKey &&
-                    maxPlayer == that.maxPlayer;
-        }
+    private static long perspectiveKey(long key, byte maxPlayer) {
+        return maxPlayer == Board.WHITE ? key ^ WHITE_MAXIMIZING : key;
+    }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(zKey, maxPlayer);
-        }
+    /// Takes the table as a parameter so a thread works on one array even if the table is resized meanwhile
+    private static int bucketIndex(long[] entries, long key) {
+        return ((int) key & (entries.length / BUCKET_SIZE - 1)) * BUCKET_SIZE;
+    }
+
+    /// @return the packed entry for the position or TableEntry.NONE
+    public static long get(long key, byte maxPlayer) {
+        key = perspectiveKey(key, maxPlayer);
+        long[] entries = TranspositionTable.entries;
+        int i = bucketIndex(entries, key);
+        long data = entries[i + 1];
+        if ((entries[i] ^ data) == key)
+            return data;
+        data = entries[i + 3];
+        if ((entries[i + 2] ^ data) == key)
+            return data;
+        return TableEntry.NONE;
+    }
+
+    public static void put(long key, byte maxPlayer, long entry) {
+        key = perspectiveKey(key, maxPlayer);
+        long[] entries = TranspositionTable.entries;
+        int i = bucketIndex(entries, key);
+        long stored = entries[i + 1];
+        if ((entries[i] ^ stored) != key
+                && TableEntry.getGeneration(stored) == generation
+                && TableEntry.getDepth(entry) < TableEntry.getDepth(stored))
+            i += 2;
+        entry = TableEntry.withGeneration(entry, generation);
+        entries[i] = key ^ entry;
+        entries[i + 1] = entry;
+    }
+
+    /// Called at the start of every search, entries from earlier searches become preferred for replacement
+    public static void newSearch() {
+        generation = (generation + 1) % TableEntry.GENERATIONS;
+    }
+
+    public static void clear() {
+        Arrays.fill(entries, 0);
+        generation = 0;
     }
 }